@@ -0,0 +1,155 @@
+package com.driver.bench;
+
+import com.driver.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Cost of every SpotifyRepository API against a pre-built catalogue of catalogueSize songs and users.
+// Throughput and sampled latency are both reported; run with -prof gc for allocation rate,
+// and -t <n> for the thread count.
+//
+// Write benchmarks grow the catalogue as they run, which is part of what they measure.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx16g"})
+public class SpotifyRepositoryBenchmark {
+
+    private static final int SONGS_PER_ALBUM = 10;
+    private static final int ALBUMS_PER_ARTIST = 10;
+    private static final int DISTINCT_LENGTHS = 600;
+    private static final int PLAYLISTS = 1000;
+    private static final int LIKES_PER_USER = 2;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int catalogueSize;
+
+    private SpotifyRepository repository;
+    private final AtomicLong nextId = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void buildCatalogue() throws Exception {
+        repository = new SpotifyRepository();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        int albums = Math.max(1, catalogueSize / SONGS_PER_ALBUM);
+        for(int a = 0; a < albums; a++)
+            repository.createAlbum(album(a), "artist" + (a / ALBUMS_PER_ARTIST));
+
+        for(int s = 0; s < catalogueSize; s++)
+            repository.createSong(song(s), album(s % albums), s % DISTINCT_LENGTHS);
+
+        for(int u = 0; u < catalogueSize; u++)
+            repository.createUser("user" + u, mobile(u));
+
+        for(int u = 0; u < catalogueSize; u++) {
+            for(int l = 0; l < LIKES_PER_USER; l++)
+                repository.likeSong(mobile(u), song(random.nextInt(catalogueSize)));
+        }
+
+        for(int p = 0; p < PLAYLISTS; p++)
+            repository.createPlaylistOnLength(mobile(random.nextInt(catalogueSize)), playlist(p), p % DISTINCT_LENGTHS);
+    }
+
+    private static String album(int i){
+        return "album" + i;
+    }
+
+    private static String song(int i){
+        return "song" + i;
+    }
+
+    private static String mobile(int i){
+        return "mobile" + i;
+    }
+
+    private static String playlist(int i){
+        return "playlist" + i;
+    }
+
+    private int anyIndex(){
+        return ThreadLocalRandom.current().nextInt(catalogueSize);
+    }
+
+    @Benchmark
+    public User createUser(){
+        long id = nextId.incrementAndGet();
+        return repository.createUser("new" + id, "new-mobile" + id);
+    }
+
+    @Benchmark
+    public User createUserExisting(){
+        return repository.createUser("user", mobile(anyIndex()));
+    }
+
+    @Benchmark
+    public Artist createArtist(){
+        return repository.createArtist("new-artist" + nextId.incrementAndGet());
+    }
+
+    @Benchmark
+    public Artist createArtistExisting(){
+        return repository.createArtist("artist" + anyIndex() / (SONGS_PER_ALBUM * ALBUMS_PER_ARTIST));
+    }
+
+    @Benchmark
+    public Album createAlbum(){
+        return repository.createAlbum("new-album" + nextId.incrementAndGet(), "artist" + anyIndex() / (SONGS_PER_ALBUM * ALBUMS_PER_ARTIST));
+    }
+
+    @Benchmark
+    public Album createAlbumNewArtist(){
+        long id = nextId.incrementAndGet();
+        return repository.createAlbum("new-album" + id, "new-artist" + id);
+    }
+
+    @Benchmark
+    public Song createSong() throws Exception {
+        return repository.createSong("new-song" + nextId.incrementAndGet(), album(anyIndex() / SONGS_PER_ALBUM), anyIndex() % DISTINCT_LENGTHS);
+    }
+
+    @Benchmark
+    public Song likeSong() throws Exception {
+        return repository.likeSong(mobile(anyIndex()), song(anyIndex()));
+    }
+
+    @Benchmark
+    public Playlist createPlaylistOnLength() throws Exception {
+        return repository.createPlaylistOnLength(mobile(anyIndex()), "new-playlist" + nextId.incrementAndGet(), anyIndex() % DISTINCT_LENGTHS);
+    }
+
+    @Benchmark
+    public Playlist createPlaylistOnName() throws Exception {
+        List<String> titles = new ArrayList<>();
+        for(int i = 0; i < 20; i++)
+            titles.add(song(anyIndex()));
+        return repository.createPlaylistOnName(mobile(anyIndex()), "new-playlist" + nextId.incrementAndGet(), titles);
+    }
+
+    @Benchmark
+    public Playlist findPlaylist() throws Exception {
+        return repository.findPlaylist(mobile(anyIndex()), playlist(ThreadLocalRandom.current().nextInt(PLAYLISTS)));
+    }
+
+    @Benchmark
+    public String mostPopularSong(){
+        return repository.mostPopularSong();
+    }
+
+    @Benchmark
+    public String mostPopularArtist(){
+        return repository.mostPopularArtist();
+    }
+
+    @Benchmark
+    public List<String> mostPopularSongs(){
+        return repository.mostPopularSongs(10);
+    }
+}
@@ -0,0 +1,300 @@
+package com.driver.load;
+
+import com.driver.Application;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Replays a production-like mix of calls against the REST API and reports latency percentiles and error
+// rates per endpoint, so storage changes can be judged end to end.
+//
+// The catalogue and users are seeded through the bulk endpoints, then calls are sent open loop: the i-th
+// call is due at start + i / rps whatever happened to the ones before, and its latency is measured from
+// when it was due. A slow server shows up as latency instead of as fewer calls sent, which a closed loop
+// of waiting clients would hide. Songs, users and playlists are drawn from Zipf distributions.
+//
+// Runs against an instance started in this JVM, which takes the usual -Dspotify.* options, or against
+// -Dload.url. Run with: mvn -Pload test-compile exec:java -Dload.rps=2000
+//
+// Configured with system properties:
+//   load.url            base URL of a running instance, e.g. http://localhost:8080 (default: start one here)
+//   load.rps            calls sent per second (default 500)
+//   load.warmup         seconds sent before measuring (default 10)
+//   load.duration       seconds measured (default 60)
+//   load.users          users seeded (default 10000)
+//   load.songs          songs seeded, ten per album and ten albums per artist (default 10000)
+//   load.playlists      playlists seeded, on song lengths (default 100)
+//   load.zipf           Zipf exponent of song, user and playlist popularity (default 1.0)
+//   load.mix            endpoint:weight pairs (default like-song:50,find-playlist:15,popular-song:15,
+//                       popular-artist:10,add-user:5,add-song:5)
+//   load.maxInFlight    calls waiting for a response before new ones are dropped and counted (default 2000)
+public class LoadGenerator {
+
+    private static final String DEFAULT_MIX =
+            "like-song:50,find-playlist:15,popular-song:15,popular-artist:10,add-user:5,add-song:5";
+    private static final int SONGS_PER_ALBUM = 10;
+    private static final int ALBUMS_PER_ARTIST = 10;
+    private static final int DISTINCT_LENGTHS = 10;
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private static class Stats {
+        final ConcurrentHistogram micros = new ConcurrentHistogram(3);
+        final LongAdder errors = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+    }
+
+    private final String base;
+    private final int users;
+    private final int songs;
+    private final int playlists;
+    private final Zipf userPopularity;
+    private final Zipf songPopularity;
+    private final Zipf playlistPopularity;
+    private final Random random = new Random(42);
+    private final HttpClient client;
+    private final ExecutorService responses = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+    // Calls made by add-user and add-song, so every create is of a new user or song.
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    LoadGenerator(String base){
+        this.base = base + "/spotify";
+        this.users = Integer.getInteger("load.users", 10000);
+        this.songs = Integer.getInteger("load.songs", 10000);
+        this.playlists = Integer.getInteger("load.playlists", 100);
+        double exponent = Double.parseDouble(System.getProperty("load.zipf", "1.0"));
+        this.userPopularity = new Zipf(users, exponent);
+        this.songPopularity = new Zipf(songs, exponent);
+        this.playlistPopularity = new Zipf(playlists, exponent);
+        this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).executor(responses).connectTimeout(TIMEOUT).build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = System.getProperty("load.url");
+        ConfigurableApplicationContext context = null;
+        if(url == null) {
+            context = SpringApplication.run(Application.class, "--server.port=0");
+            url = "http://localhost:" + ((WebServerApplicationContext) context).getWebServer().getPort();
+        }
+
+        LoadGenerator generator = new LoadGenerator(url);
+        try {
+            generator.seed();
+            generator.run(Integer.getInteger("load.rps", 500), Integer.getInteger("load.warmup", 10),
+                    Integer.getInteger("load.duration", 60), parseMix(System.getProperty("load.mix", DEFAULT_MIX)));
+        } finally {
+            generator.responses.shutdownNow();
+            if(context != null)
+                context.close();
+        }
+    }
+
+    // endpoint -> weight, in the order given.
+    static LinkedHashMap<String, Integer> parseMix(String mix){
+        LinkedHashMap<String, Integer> weights = new LinkedHashMap<>();
+        for(String pair : mix.split(",")) {
+            String[] parts = pair.trim().split(":");
+            if(parts.length != 2)
+                throw new IllegalArgumentException("load.mix entries are endpoint:weight, got " + pair);
+            weights.put(parts[0], Integer.parseInt(parts[1]));
+        }
+        return weights;
+    }
+
+    // ---------------------------------------------------------------------------------
+
+    private void seed() throws Exception {
+        long started = System.nanoTime();
+
+        StringBuilder rows = new StringBuilder("name,mobile\n");
+        for(int u = 0; u < users; u++)
+            rows.append("user").append(u).append(',').append(mobile(u)).append('\n');
+        bulk("/add-users", rows);
+
+        int albums = (songs + SONGS_PER_ALBUM - 1) / SONGS_PER_ALBUM;
+        rows = new StringBuilder("title,artistName\n");
+        for(int a = 0; a < albums; a++)
+            rows.append(album(a)).append(",artist").append(a / ALBUMS_PER_ARTIST).append('\n');
+        bulk("/add-albums", rows);
+
+        rows = new StringBuilder("title,albumName,length\n");
+        for(int s = 0; s < songs; s++)
+            rows.append(song(s)).append(',').append(album(s / SONGS_PER_ALBUM)).append(',').append(length(s)).append('\n');
+        bulk("/add-songs", rows);
+
+        for(int p = 0; p < playlists; p++)
+            check(send("POST", "/add-playlist-on-length?mobile=" + mobile(p % users) + "&title=" + playlist(p) + "&length=" + length(p)));
+
+        System.out.printf("Seeded %d users, %d songs and %d playlists in %.1f s%n",
+                users, songs, playlists, (System.nanoTime() - started) / 1e9);
+    }
+
+    private void bulk(String path, StringBuilder csv) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(base + path)).timeout(Duration.ofMinutes(5))
+                .header("Content-Type", "text/csv").POST(HttpRequest.BodyPublishers.ofString(csv.toString())).build();
+        check(client.send(request, HttpResponse.BodyHandlers.ofString()));
+    }
+
+    private HttpResponse<String> send(String method, String pathAndQuery) throws Exception {
+        return client.send(request(method, pathAndQuery), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static void check(HttpResponse<String> response) throws Exception {
+        if(response.statusCode() / 100 != 2)
+            throw new Exception("Seeding failed with " + response.statusCode() + ": " + response.body());
+    }
+
+    // ---------------------------------------------------------------------------------
+
+    private void run(int rps, int warmupSeconds, int durationSeconds, LinkedHashMap<String, Integer> mix)
+            throws InterruptedException {
+        String[] endpoints = mix.keySet().toArray(new String[0]);
+        int[] cumulative = new int[endpoints.length];
+        int total = 0;
+        for(int i = 0; i < endpoints.length; i++) {
+            total += mix.get(endpoints[i]);
+            cumulative[i] = total;
+        }
+        Map<String, Stats> stats = new LinkedHashMap<>();
+        for(String endpoint : endpoints)
+            stats.put(endpoint, new Stats());
+
+        int maxInFlight = Integer.getInteger("load.maxInFlight", 2000);
+        double interval = 1e9 / rps;
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long maxLag = 0;
+
+        for(long i = 0; ; i++) {
+            long due = start + (long) (i * interval);
+            if(due >= end)
+                break;
+            long wait = due - System.nanoTime();
+            if(wait > 0)
+                LockSupport.parkNanos(wait);
+            else if(due >= measureFrom)
+                maxLag = Math.max(maxLag, -wait);
+
+            int pick = random.nextInt(total);
+            int e = 0;
+            while(cumulative[e] <= pick)
+                e++;
+            Stats of = due >= measureFrom ? stats.get(endpoints[e]) : null;
+
+            if(inFlight.get() >= maxInFlight) {
+                if(of != null)
+                    of.dropped.increment();
+                continue;
+            }
+            inFlight.incrementAndGet();
+            client.sendAsync(call(endpoints[e]), HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+                inFlight.decrementAndGet();
+                if(of == null)
+                    return;
+                of.micros.recordValue(Math.max(0, (System.nanoTime() - due) / 1000));
+                if(error != null || response.statusCode() / 100 != 2)
+                    of.errors.increment();
+            });
+        }
+
+        // Calls still out count once they answer or time out.
+        long drainUntil = System.nanoTime() + TIMEOUT.toNanos();
+        while(inFlight.get() > 0 && System.nanoTime() < drainUntil)
+            Thread.sleep(10);
+
+        report(stats, durationSeconds, rps, maxLag);
+    }
+
+    private HttpRequest call(String endpoint){
+        switch(endpoint) {
+            case "like-song":
+                return request("PUT", "/like-song?mobile=" + mobile(userPopularity.next(random)) + "&songTitle=" + song(songPopularity.next(random)));
+            case "find-playlist":
+                return request("PUT", "/find-playlist?mobile=" + mobile(userPopularity.next(random)) + "&playlistTitle=" + playlist(playlistPopularity.next(random)));
+            case "add-user": {
+                long n = created.getAndIncrement();
+                return request("POST", "/add-user?name=load" + n + "&mobile=load" + n);
+            }
+            case "add-song": {
+                long n = created.getAndIncrement();
+                return request("POST", "/add-song?title=load" + n + "&albumName=" + album(songPopularity.next(random) / SONGS_PER_ALBUM) + "&length=" + length((int) n));
+            }
+            default:
+                // Reads without parameters, e.g. popular-song, popular-artist, popular-songs.
+                return request("GET", "/" + endpoint);
+        }
+    }
+
+    private HttpRequest request(String method, String pathAndQuery){
+        return HttpRequest.newBuilder(URI.create(base + pathAndQuery)).timeout(TIMEOUT)
+                .method(method, HttpRequest.BodyPublishers.noBody()).build();
+    }
+
+    private static void report(Map<String, Stats> stats, int durationSeconds, int rps, long maxLag){
+        Histogram all = new Histogram(3);
+        long errors = 0;
+        long dropped = 0;
+
+        System.out.printf("%n%-16s %9s %8s %8s %9s %9s %9s %9s %9s%n",
+                "endpoint", "calls", "errors", "dropped", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for(Map.Entry<String, Stats> entry : stats.entrySet()) {
+            Stats of = entry.getValue();
+            Histogram micros = of.micros.copy();
+            all.add(micros);
+            errors += of.errors.sum();
+            dropped += of.dropped.sum();
+            row(entry.getKey(), micros, of.errors.sum(), of.dropped.sum());
+        }
+        row("all", all, errors, dropped);
+
+        long calls = all.getTotalCount();
+        System.out.printf("%nTarget %d calls/s, answered %.0f calls/s, errors %.2f%%, dropped %d, scheduler behind by up to %.1f ms%n",
+                rps, (double) calls / durationSeconds, calls == 0 ? 0 : 100.0 * errors / calls, dropped, maxLag / 1e6);
+    }
+
+    private static void row(String name, Histogram micros, long errors, long dropped){
+        System.out.printf("%-16s %9d %8d %8d %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, micros.getTotalCount(), errors, dropped,
+                micros.getValueAtPercentile(50) / 1e3, micros.getValueAtPercentile(90) / 1e3,
+                micros.getValueAtPercentile(99) / 1e3, micros.getValueAtPercentile(99.9) / 1e3, micros.getMaxValue() / 1e3);
+    }
+
+    // ---------------------------------------------------------------------------------
+
+    private static String mobile(int user){
+        return "mobile" + user;
+    }
+
+    private static String song(int song){
+        return "song" + song;
+    }
+
+    private static String album(int album){
+        return "album" + album;
+    }
+
+    private static String playlist(int playlist){
+        return "playlist" + playlist;
+    }
+
+    private static int length(int song){
+        return 1 + song % DISTINCT_LENGTHS;
+    }
+}
@@ -0,0 +1,28 @@
+package com.driver.load;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Ranks 0..n-1 drawn with probability proportional to 1 / (rank + 1)^exponent, so a few songs and users
+// get most of the traffic and the rest a long tail, the way listening is spread in production.
+// Draws are a binary search of the cumulative distribution, built once.
+public class Zipf {
+
+    private final double[] cumulative;
+
+    public Zipf(int n, double exponent){
+        cumulative = new double[n];
+        double sum = 0;
+        for(int rank = 0; rank < n; rank++) {
+            sum += 1 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        for(int rank = 0; rank < n; rank++)
+            cumulative[rank] /= sum;
+    }
+
+    public int next(Random random){
+        int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(rank < 0 ? -rank - 1 : rank, cumulative.length - 1);
+    }
+}
@@ -0,0 +1,381 @@
+package com.driver;
+
+import java.util.*;
+
+// The Spotify API, written in terms of the operations below that read and change repository state.
+// SpotifyRepository implements them over its own maps and catalogue; ShardedSpotifyRepository routes
+// them to the shard that owns the data. Either way the API methods here validate and throw the same.
+public abstract class AbstractSpotifyRepository {
+
+    // A ShardedSpotifyRepository over -Dspotify.shards=<n> repositories when n is more than 1, otherwise a plain one.
+    // A sharded repository can't be journalled, exported or imported; see ShardedSpotifyRepository.
+    public static AbstractSpotifyRepository fromSystemProperties(){
+        int shards = Integer.getInteger("spotify.shards", 1);
+        if(shards <= 1)
+            return new SpotifyRepository();
+        return new ShardedSpotifyRepository(new LocalShardTransport(shards));
+    }
+
+    static <T> List<T> newList(){
+        return new AppendOnlyList<>();
+    }
+
+    // Bumped after every write that changes what a read returns, so cached reads know when they are stale.
+    public abstract long getVersion();
+
+    // ---------------------------------------------------------------------------------
+    // State, implemented by the repository and the router
+
+    public abstract User createUser(String name, String mobile);
+
+    // The user with the given id, or null if there is none.
+    public abstract User getUserById(int id);
+
+    public abstract User checkIfUserExists(String mobile);
+
+    public abstract Artist createArtist(String name);
+
+    public abstract Artist checkIfArtistExists(String artistName);
+
+    // Creates the artist too if there is none with the name.
+    abstract Album createAlbum(String title, String artistName, Date releaseDate);
+
+    public abstract Album checkIfAlbumExists(String albumName);
+
+    // Adds a song to a known album.
+    abstract Song addSong(String title, Album album, int length);
+
+    public abstract Song checkIfSongExists(String songTitle);
+
+    public abstract Album getAlbumOfTheSong(Song song);
+
+    public abstract Artist getArtistOfTheAlbum(Album album);
+
+    // The ids of the users who liked the song, or null if nobody has.
+    public abstract LikeSet getLikesOfTheSong(Song song);
+
+    public abstract List<Song> getSongWithGivenLength(int length);
+
+    public abstract List<Song> getSongsWithLengthBetween(int minLength, int maxLength);
+
+    // Songs with the given length as a live view, for playlists made by that rule.
+    abstract List<Song> songsWithLength(int length);
+
+    // A list to gather the songs of a query into.
+    abstract List<Song> newSongList();
+
+    // Appends every song with the title that isn't in seen yet.
+    public abstract void getSongsWithGivenTitle(String title, List<Song> songList, Set<Song> seen);
+
+    // Gives the playlist its id and makes the user its creator and first listener.
+    abstract Playlist addPlaylist(User user, Playlist playlist, List<Song> listOfSongs);
+
+    public abstract Playlist checkIfPlaylistExists(String playlistTitle);
+
+    public abstract Playlist getPlaylistById(int id);
+
+    public abstract boolean checkIfUserIsACreator(User user, Playlist playlist);
+
+    public abstract boolean checkIfUserIsAListener(User user, Playlist playlist);
+
+    // Adds the user as a listener unless they already are one, or the creator.
+    abstract boolean addListener(User user, Playlist playlist);
+
+    public abstract Page<Song> getPlaylistSongs(int playlistId, Integer cursor, int limit) throws Exception;
+
+    public abstract Page<User> getPlaylistListeners(int playlistId, Integer cursor, int limit) throws Exception;
+
+    public abstract Page<Album> getArtistAlbums(String artistName, Integer cursor, int limit) throws Exception;
+
+    public abstract Page<Song> getAlbumSongs(String albumTitle, Integer cursor, int limit) throws Exception;
+
+    // The like itself, for a user and song already looked up.
+    abstract Song likeSong(User user, Song song);
+
+    // Applies a batch of already validated likes.
+    public abstract void applyLikes(List<LikePipeline.Like> likes);
+
+    public abstract String mostPopularArtist();
+
+    public abstract List<String> mostPopularArtists(int k);
+
+    public abstract String mostPopularSong();
+
+    public abstract List<String> mostPopularSongs(int k);
+
+    public abstract List<String> trendingSongs(String window, int k) throws Exception;
+
+    public abstract List<String> trendingArtists(String window, int k) throws Exception;
+
+    public abstract List<SearchIndex.Hit> search(String query, int limit) throws Exception;
+
+    abstract List<Recommender.Recommendation> recommendations(User user, int k);
+
+    // ---------------------------------------------------------------------------------
+    // The API
+
+    public Album createAlbum(String title, String artistName)                                      // 3rd API - Done
+    {
+        //If the artist does not exist, first create an artist with given name
+        //Create an album with given title and artist
+
+        return createAlbum(title,artistName,new Date());
+    }
+
+    public Song createSong(String title, String albumName, int length) throws Exception            // 4th API - Done
+    {
+        //If the album does not exist in database, throw "Album does not exist" exception
+        //Create and add the song to respective album
+
+        Album album = checkIfAlbumExists(albumName);
+
+        if(album == null)
+            throw new Exception("Album does not exist");
+
+        return addSong(title,album,length);
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Bulk import. Each batch is applied in one pass through the same create paths as the single APIs,
+    // and a bad row is recorded in the result without stopping the rest of the batch.
+
+    private static String requiredField(Map<String, String> row, String field) throws Exception {
+        String value = row.get(field);
+        if(value == null || value.isEmpty())
+            throw new Exception("Missing " + field);
+        return value;
+    }
+
+    public void createUsers(List<Map<String, String>> rows, ImportResult result){
+        for(Map<String, String> row : rows){
+            try {
+                createUser(row.get("name"),requiredField(row,"mobile"));
+                result.rowSucceeded();
+            } catch(Exception e) {
+                result.rowFailed(e.getMessage());
+            }
+        }
+    }
+
+    public void createArtists(List<Map<String, String>> rows, ImportResult result){
+        for(Map<String, String> row : rows){
+            try {
+                createArtist(requiredField(row,"name"));
+                result.rowSucceeded();
+            } catch(Exception e) {
+                result.rowFailed(e.getMessage());
+            }
+        }
+    }
+
+    public void createAlbums(List<Map<String, String>> rows, ImportResult result){
+        for(Map<String, String> row : rows){
+            try {
+                // The optional releaseDate is epoch millis.
+                Date releaseDate = new Date();
+                String releaseDateField = row.get("releaseDate");
+                if(releaseDateField != null && !releaseDateField.isEmpty()) {
+                    try {
+                        releaseDate = new Date(Long.parseLong(releaseDateField.trim()));
+                    } catch(NumberFormatException e) {
+                        throw new Exception("Invalid releaseDate");
+                    }
+                }
+
+                createAlbum(requiredField(row,"title"),requiredField(row,"artistName"),releaseDate);
+                result.rowSucceeded();
+            } catch(Exception e) {
+                result.rowFailed(e.getMessage());
+            }
+        }
+    }
+
+    public void createSongs(List<Map<String, String>> rows, ImportResult result){
+        for(Map<String, String> row : rows){
+            try {
+                int length;
+                try {
+                    length = Integer.parseInt(requiredField(row,"length").trim());
+                } catch(NumberFormatException e) {
+                    throw new Exception("Invalid length");
+                }
+                createSong(requiredField(row,"title"),requiredField(row,"albumName"),length);
+                result.rowSucceeded();
+            } catch(Exception e) {
+                result.rowFailed(e.getMessage());
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------
+
+    public Playlist createPlaylistOnLength(String mobile, String title, int length) throws Exception   // 5th API - Done
+    {
+        // Create a playlist with given title and add all songs having the given length in the database to that playlist
+        // The creator of the playlist will be the given user and will also be the only listener at the time of playlist creation
+        // If the user does not exist, throw "User does not exist" exception
+
+        User user = checkIfUserExists(mobile);
+        if(user == null)
+            throw new Exception("User does not exist");
+
+        Playlist playlist = new Playlist(title);
+
+        //  Put in playlist-Song-Map , playlist-Listener-Map , creatorPlaylistMap , user-Playlist-Map  (HashMap)
+
+        // The playlist keeps the rule, not a copy of the songs, so it also gets songs added with the length later.
+        List<Song> listOfSongs = songsWithLength(length);
+
+        return addPlaylist(user,playlist,listOfSongs);
+    }
+
+    public Playlist createPlaylistOnLengthRange(String mobile, String title, int minLength, int maxLength) throws Exception
+    {
+        // Same as createPlaylistOnLength, with every song whose length is between minLength and maxLength, both inclusive
+        // If minLength is greater than maxLength, throw "Invalid length range" exception
+
+        User user = checkIfUserExists(mobile);
+        if(user == null)
+            throw new Exception("User does not exist");
+
+        if(minLength > maxLength)
+            throw new Exception("Invalid length range");
+
+        Playlist playlist = new Playlist(title);
+        List<Song> listOfSongs = getSongsWithLengthBetween(minLength,maxLength);
+
+        return addPlaylist(user,playlist,listOfSongs);
+    }
+
+    public void getSongsWithGivenTitle(String title,List<Song> songList){
+
+        Set<Song> seen;
+        synchronized (songList) {
+            seen = new HashSet<>(songList);
+        }
+        getSongsWithGivenTitle(title,songList,seen);
+    }
+
+    public Playlist createPlaylistOnName(String mobile, String title, List<String> songTitles) throws Exception  // 6th API - Done
+    {
+        //Create a playlist with given title and add all songs having the given titles in the database to that playlist
+        //The creator of the playlist will be the given user and will also be the only listener at the time of playlist creation
+        //If the user does not exist, throw "User does not exist" exception
+
+        User user = checkIfUserExists(mobile);
+
+        if(user == null)
+            throw new Exception("User does not exist");
+
+        Playlist playlist = new Playlist(title);
+        List<Song> listOfSongs = newSongList();
+        Set<Song> seen = new HashSet<>();
+
+        for(String st : songTitles){
+            getSongsWithGivenTitle(st,listOfSongs,seen);
+        }
+
+        //  Put in playlist-Song-Map , playlist-Listener-Map , creatorPlaylistMap , user-Playlist-Map  (HashMap)
+
+        return addPlaylist(user,playlist,listOfSongs);
+    }
+
+    public Playlist findPlaylist(String mobile, String playlistTitle) throws Exception             // 7th API - done
+    {
+        // 1. Find the playlist with given title and add user as listener of that playlist and update user accordingly
+        // 2. If the user is creator or already a listener, do nothing
+        // 3. If the user does not exist, throw "User does not exist" exception
+        // 4. If the playlist does not exist, throw "Playlist does not exist" exception
+        // 5. Return the playlist after updating.
+
+        Playlist playlist = null;
+
+        playlist = checkIfPlaylistExists(playlistTitle);
+
+        if(playlist == null)
+            throw new Exception("Playlist does not exist");
+
+        User user = null;
+        user = checkIfUserExists(mobile);
+
+        if(user == null)
+            throw new Exception("User does not exist");
+
+        addListener(user,playlist);
+
+        return playlist;
+    }
+
+    public Playlist findPlaylistById(String mobile, int playlistId) throws Exception
+    {
+        // Same as findPlaylist, for the playlist with the given id. Titles can repeat; ids can't
+
+        Playlist playlist = getPlaylistById(playlistId);
+
+        if(playlist == null)
+            throw new Exception("Playlist does not exist");
+
+        User user = checkIfUserExists(mobile);
+
+        if(user == null)
+            throw new Exception("User does not exist");
+
+        addListener(user,playlist);
+
+        return playlist;
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // Pages never hold more than MAX_PAGE_SIZE items.
+
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    static int pageSize(int limit) throws Exception {
+        if(limit < 1)
+            throw new Exception("Invalid limit");
+        return Math.min(limit,MAX_PAGE_SIZE);
+    }
+
+    // ---------------------------------------------------------------------------------------
+
+    public Song likeSong(String mobile, String songTitle) throws Exception                         // 8th API - done
+    {
+        // 1. The user likes the given song. The corresponding artist of the song gets auto-liked
+        // 2. A song can be liked by a user only once. If a user tried to like a song multiple times, do nothing
+        // 3. However, an artist can indirectly have multiple likes from a user, if the user has liked multiple songs of that artist.
+        // 4. If the user does not exist, throw "User does not exist" exception
+        // 5. If the song does not exist, throw "Song does not exist" exception
+        // 6. Return the song after updating
+
+        User user = null;
+        user = checkIfUserExists(mobile);
+
+        if(user == null)
+            throw new Exception("User does not exist");
+
+        // 6.
+        Song song = null;
+        song = checkIfSongExists(songTitle);
+
+        if(song == null)
+            throw new Exception("Song does not exist");
+
+        return likeSong(user,song);
+    }
+
+    public List<String> recommendSongs(String mobile, int k) throws Exception
+    {
+        //Return up to k song titles liked by the listeners of the user's recent songs, best first,
+        //leaving out songs the user liked
+        //If the user does not exist, throw "User does not exist" exception
+
+        User user = checkIfUserExists(mobile);
+        if(user == null)
+            throw new Exception("User does not exist");
+
+        List<String> titles = new ArrayList<>();
+        for(Recommender.Recommendation recommendation : recommendations(user,k))
+            titles.add(recommendation.getSong().getTitle());
+        return titles;
+    }
+}
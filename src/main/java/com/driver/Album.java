@@ -4,31 +4,69 @@ import java.util.Date;
 import java.util.List;
 
 public class Album {
-    private String title;
+    // Albums in a SpotifyRepository are views of a row of its ColumnarCatalogue, like songs. The title
+    // doesn't change once the album is made: the repository finds albums by it.
+    private final ColumnarCatalogue catalogue;
+    private final int id;
+
+    private final String title;
     private Date releaseDate;
 
     public Album(){
-
+        this.catalogue = null;
+        this.id = -1;
+        this.title = null;
     }
 
     public Album(String title){
+        this.catalogue = null;
+        this.id = -1;
         this.title = title;
         this.releaseDate = new Date();
     }
 
-    public String getTitle() {
-        return title;
+    Album(ColumnarCatalogue catalogue, int id){
+        this.catalogue = catalogue;
+        this.id = id;
+        this.title = null;
     }
 
-    public void setTitle(String title) {
-        this.title = title;
+    ColumnarCatalogue getCatalogue() {
+        return catalogue;
+    }
+
+    // Dense, in creation order, for albums in a catalogue; -1 otherwise.
+    public int getId() {
+        return id;
+    }
+
+    public String getTitle() {
+        return catalogue == null ? title : catalogue.albumTitle(id);
     }
 
     public Date getReleaseDate() {
-        return releaseDate;
+        return catalogue == null ? releaseDate : catalogue.albumReleaseDate(id);
     }
 
     public void setReleaseDate(Date releaseDate) {
-        this.releaseDate = releaseDate;
+        if(catalogue == null)
+            this.releaseDate = releaseDate;
+        else
+            catalogue.setAlbumReleaseDate(id,releaseDate);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(catalogue == null || !(o instanceof Album))
+            return false;
+        Album other = (Album) o;
+        return catalogue == other.catalogue && id == other.id;
+    }
+
+    @Override
+    public int hashCode() {
+        return catalogue == null ? System.identityHashCode(this) : id;
     }
 }
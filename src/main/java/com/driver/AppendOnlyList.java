@@ -0,0 +1,95 @@
+package com.driver;
+
+import java.util.*;
+
+// A list that only grows, published as immutable versions through a volatile reference. A reader takes the
+// current version and sees the list as it was at that moment, without a lock, however many adds run meanwhile.
+//
+// Versions share one array: an add writes the slot past the end of the current version, which no version
+// reads, then publishes a version one longer. When the array is full it is copied, and older versions keep
+// the old one. Writers serialize on the list, so holding its monitor also makes a check and an add atomic,
+// and addAll publishes a whole batch as one version. Empty lists share one empty version, so the many
+// lists that never get an item cost one small object each.
+public class AppendOnlyList<T> extends AbstractList<T> implements RandomAccess {
+
+    private static class Version<T> extends AbstractList<T> implements RandomAccess {
+        final Object[] items;
+        final int size;
+
+        Version(Object[] items, int size){
+            this.items = items;
+            this.size = size;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(int index){
+            if(index < 0 || index >= size)
+                throw new IndexOutOfBoundsException("Item " + index + " of " + size);
+            return (T) items[index];
+        }
+
+        @Override
+        public int size(){
+            return size;
+        }
+    }
+
+    private static final Version<Object> EMPTY = new Version<>(new Object[0], 0);
+    private static final int FIRST_CAPACITY = 8;
+
+    @SuppressWarnings("unchecked")
+    private volatile Version<T> current = (Version<T>) EMPTY;
+
+    // The list as it is now, unchanged by later adds.
+    public List<T> snapshot(){
+        return current;
+    }
+
+    // The current version of an AppendOnlyList; any other list as it is.
+    static <T> List<T> snapshot(List<T> list){
+        return list instanceof AppendOnlyList ? ((AppendOnlyList<T>) list).snapshot() : list;
+    }
+
+    @Override
+    public synchronized boolean add(T item){
+        Version<T> version = current;
+        Object[] items = version.items;
+        if(version.size == items.length)
+            items = Arrays.copyOf(items, Math.max(FIRST_CAPACITY, version.size * 2));
+        items[version.size] = item;
+        current = new Version<>(items, version.size + 1);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean addAll(Collection<? extends T> added){
+        Object[] batch = added.toArray();
+        if(batch.length == 0)
+            return false;
+
+        Version<T> version = current;
+        Object[] items = version.items;
+        if(version.size + batch.length > items.length)
+            items = Arrays.copyOf(items, Math.max(Math.max(FIRST_CAPACITY, version.size * 2), version.size + batch.length));
+        System.arraycopy(batch, 0, items, version.size, batch.length);
+        current = new Version<>(items, version.size + batch.length);
+        return true;
+    }
+
+    @Override
+    public T get(int index){
+        return current.get(index);
+    }
+
+    @Override
+    public int size(){
+        return current.size;
+    }
+
+    // Walks the version current when the iterator was made.
+    @Override
+    public Iterator<T> iterator(){
+        return snapshot().iterator();
+    }
+}
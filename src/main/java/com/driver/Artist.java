@@ -1,10 +1,12 @@
 package com.driver;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Artist {
+    private int id;                 // dense, assigned by SpotifyRepository in creation order
     private String name;
-    private int likes;
+    private final AtomicInteger likes = new AtomicInteger();
 
     public Artist(){
 
@@ -12,7 +14,14 @@ public class Artist {
 
     public Artist(String name){
         this.name = name;
-        this.likes = 0;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
     }
 
     public String getName() {
@@ -24,10 +33,18 @@ public class Artist {
     }
 
     public int getLikes() {
-        return likes;
+        return likes.get();
     }
 
     public void setLikes(int likes) {
-        this.likes = likes;
+        this.likes.set(likes);
+    }
+
+    public int incrementLikes() {
+        return likes.incrementAndGet();
+    }
+
+    public int addLikes(int count) {
+        return likes.addAndGet(count);
     }
 }
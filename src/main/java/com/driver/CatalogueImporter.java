@@ -0,0 +1,139 @@
+package com.driver;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+// Streams rows out of a JSON array of objects or a CSV file with a header line,
+// and hands them to the service in fixed-size batches, so an import of any size
+// only holds one batch in memory.
+public class CatalogueImporter {
+
+    public static final int BATCH_SIZE = 1000;
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final BiConsumer<List<Map<String, String>>, ImportResult> applyBatch;
+
+    public CatalogueImporter(BiConsumer<List<Map<String, String>>, ImportResult> applyBatch){
+        this.applyBatch = applyBatch;
+    }
+
+    public ImportResult importStream(InputStream in, String contentType) throws IOException {
+        ImportResult result = new ImportResult();
+        if(contentType != null && contentType.toLowerCase().startsWith("text/csv"))
+            readCsv(in, result);
+        else
+            readJson(in, result);
+        return result;
+    }
+
+    private void readJson(InputStream in, ImportResult result) throws IOException {
+        List<Map<String, String>> batch = new ArrayList<>(BATCH_SIZE);
+
+        try(JsonParser parser = JSON.createParser(in)) {
+            if(parser.nextToken() != JsonToken.START_ARRAY) {
+                result.inputFailed("Expected a JSON array of rows");
+                return;
+            }
+
+            JsonToken token;
+            while((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+                Map<String, String> row = new HashMap<>();
+                while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if(value.isStructStart()) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    row.put(field, value == JsonToken.VALUE_NULL ? null : parser.getText());
+                }
+                add(batch, row, result);
+            }
+
+            if(token != JsonToken.END_ARRAY) {
+                flush(batch, result);
+                result.inputFailed("Expected a JSON object for every row");
+            }
+        } catch(JsonParseException e) {
+            // Keep the rows read so far and report where the stream broke.
+            flush(batch, result);
+            result.inputFailed("Malformed JSON: " + e.getOriginalMessage());
+        }
+        flush(batch, result);
+    }
+
+    private void readCsv(InputStream in, ImportResult result) throws IOException {
+        List<Map<String, String>> batch = new ArrayList<>(BATCH_SIZE);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+
+        String header = reader.readLine();
+        if(header == null)
+            return;
+        List<String> columns = splitCsvLine(header);
+
+        String line;
+        while((line = reader.readLine()) != null) {
+            if(line.isEmpty())
+                continue;
+
+            List<String> values = splitCsvLine(line);
+            Map<String, String> row = new HashMap<>();
+            for(int i = 0; i < columns.size() && i < values.size(); i++)
+                row.put(columns.get(i).trim(), values.get(i));
+            add(batch, row, result);
+        }
+        flush(batch, result);
+    }
+
+    // Comma separated, with double quotes around fields that contain commas and "" for a quote.
+    static List<String> splitCsvLine(String line){
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for(int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if(quoted) {
+                if(c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                }
+                else if(c == '"')
+                    quoted = false;
+                else
+                    field.append(c);
+            }
+            else if(c == '"')
+                quoted = true;
+            else if(c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            }
+            else
+                field.append(c);
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private void add(List<Map<String, String>> batch, Map<String, String> row, ImportResult result){
+        batch.add(row);
+        if(batch.size() >= BATCH_SIZE)
+            flush(batch, result);
+    }
+
+    private void flush(List<Map<String, String>> batch, ImportResult result){
+        if(batch.isEmpty())
+            return;
+        applyBatch.accept(batch, result);
+        batch.clear();
+    }
+}
@@ -0,0 +1,498 @@
+package com.driver;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntConsumer;
+
+// The albums and songs of a SpotifyRepository, stored as primitive columns indexed by dense ids instead
+// of one object per song with its own title string, counter and map entries. Titles are dictionary
+// encoded, release dates are epoch millis, and the title and album indexes are chains of song ids threaded
+// through the columns, so a song costs a few dozen bytes whatever it is indexed by. The length index is an
+// array of song ids per length, on the heap, so views of one length can be read by position.
+//
+// Song and Album objects handed out by the catalogue are views of a row, created on demand and equal
+// by id. With offHeap set, the columns and titles live in direct buffers outside the Java heap.
+//
+// Rows are added by one thread at a time under the catalogue's monitor; every read is lock-free.
+public class ColumnarCatalogue {
+
+    static final int NONE = -1;
+    private static final long NO_RELEASE_DATE = Long.MIN_VALUE;
+
+    // A like set slot is a reference: 4 bytes with compressed references, the default for heaps below 32 GB.
+    private static final int REFERENCE_BYTES = 4;
+
+    private final boolean offHeap;
+    private final TitleDictionary titles;
+
+    // Per title id: the first and last song with the title, and the first album, which keeps the title's slot.
+    private final IntColumn firstSongWithTitle;
+    private final IntColumn lastSongWithTitle;
+    private final IntColumn firstAlbumWithTitle;
+
+    // Per album id.
+    private final IntColumn albumTitle;
+    private final IntColumn albumArtist;                // Artist.getId()
+    private final LongColumn albumReleased;             // epoch millis
+    private final IntColumn firstSongOfAlbum;
+    private final IntColumn lastSongOfAlbum;
+
+    // Per song id. The next* columns chain the songs sharing a title or album, in creation order.
+    private final IntColumn songTitle;
+    private final IntColumn songAlbum;
+    private final IntColumn songLength;
+    private final IntColumn songLikes;
+    private final IntColumn nextSongWithTitle;
+    private final IntColumn nextSongOfAlbum;
+
+    // Per song id, created on the first like, so songs nobody liked cost a null slot. Chunked like IntColumn.
+    private volatile Object[] likers = new Object[0];
+
+    // Song lengths are few, so each gets its songs in a sorted map, which also serves length ranges.
+    private final ConcurrentSkipListMap<Integer, LengthIndex> lengths = new ConcurrentSkipListMap<>();
+
+    private volatile int songCount;
+    private volatile int albumCount;
+
+    // Song ids of one length in creation order. Appended under the catalogue's monitor and read without it:
+    // a grown array is published before the size that reaches into it, so whoever reads the size first
+    // then the array sees every id below that size.
+    private static class LengthIndex {
+        volatile int[] ids = new int[4];
+        volatile int size;
+
+        void add(int id){
+            int[] current = ids;
+            if(size == current.length)
+                ids = current = Arrays.copyOf(current, size * 2);
+            current[size] = id;
+            size = size + 1;
+        }
+    }
+
+    public ColumnarCatalogue(boolean offHeap){
+        this.offHeap = offHeap;
+        titles = new TitleDictionary(offHeap);
+
+        firstSongWithTitle = new IntColumn(offHeap, NONE);
+        lastSongWithTitle = new IntColumn(offHeap, NONE);
+        firstAlbumWithTitle = new IntColumn(offHeap, NONE);
+
+        albumTitle = new IntColumn(offHeap, NONE);
+        albumArtist = new IntColumn(offHeap, NONE);
+        albumReleased = new LongColumn(offHeap, NO_RELEASE_DATE);
+        firstSongOfAlbum = new IntColumn(offHeap, NONE);
+        lastSongOfAlbum = new IntColumn(offHeap, NONE);
+
+        songTitle = new IntColumn(offHeap, NONE);
+        songAlbum = new IntColumn(offHeap, NONE);
+        songLength = new IntColumn(offHeap, 0);
+        songLikes = new IntColumn(offHeap, 0);
+        nextSongWithTitle = new IntColumn(offHeap, NONE);
+        nextSongOfAlbum = new IntColumn(offHeap, NONE);
+    }
+
+    public boolean isOffHeap(){
+        return offHeap;
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Adding rows
+
+    private int addTitle(String title){
+        int id = titles.add(title);
+        firstSongWithTitle.ensureCapacity(id);
+        lastSongWithTitle.ensureCapacity(id);
+        firstAlbumWithTitle.ensureCapacity(id);
+        return id;
+    }
+
+    public synchronized int addAlbum(String title, int artistId, Date releaseDate){
+        int titleId = addTitle(title);
+        int id = albumCount;
+
+        albumTitle.ensureCapacity(id);
+        albumArtist.ensureCapacity(id);
+        albumReleased.ensureCapacity(id);
+        firstSongOfAlbum.ensureCapacity(id);
+        lastSongOfAlbum.ensureCapacity(id);
+
+        albumTitle.set(id, titleId);
+        albumArtist.set(id, artistId);
+        albumReleased.set(id, toMillis(releaseDate));
+
+        if(firstAlbumWithTitle.get(titleId) == NONE)
+            firstAlbumWithTitle.set(titleId, id);
+        albumCount = id + 1;
+        return id;
+    }
+
+    public synchronized int addSong(String title, int albumId, int length){
+        int titleId = addTitle(title);
+        int id = songCount;
+
+        songTitle.ensureCapacity(id);
+        songAlbum.ensureCapacity(id);
+        songLength.ensureCapacity(id);
+        songLikes.ensureCapacity(id);
+        nextSongWithTitle.ensureCapacity(id);
+        nextSongOfAlbum.ensureCapacity(id);
+        ensureLikersCapacity(id);
+
+        songTitle.set(id, titleId);
+        songAlbum.set(id, albumId);
+        songLength.set(id, length);
+
+        // The row is complete before it is linked, and each chain is linked at its tail,
+        // so a reader walking a chain sees whole rows and never a broken link.
+        if(firstSongWithTitle.get(titleId) == NONE)
+            firstSongWithTitle.set(titleId, id);
+        else
+            nextSongWithTitle.set(lastSongWithTitle.get(titleId), id);
+        lastSongWithTitle.set(titleId, id);
+
+        if(firstSongOfAlbum.get(albumId) == NONE)
+            firstSongOfAlbum.set(albumId, id);
+        else
+            nextSongOfAlbum.set(lastSongOfAlbum.get(albumId), id);
+        lastSongOfAlbum.set(albumId, id);
+
+        lengths.computeIfAbsent(length, l -> new LengthIndex()).add(id);
+
+        songCount = id + 1;
+        return id;
+    }
+
+    private void ensureLikersCapacity(int id){
+        Object[] current = likers;
+        int needed = IntColumn.chunkOf(id) + 1;
+        if(needed <= current.length)
+            return;
+
+        Object[] grown = Arrays.copyOf(current, needed);
+        for(int i = current.length; i < needed; i++)
+            grown[i] = new AtomicReferenceArray<LikeSet>(IntColumn.chunkSize(i));
+        likers = grown;
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Rows
+
+    public int songCount(){
+        return songCount;
+    }
+
+    public int albumCount(){
+        return albumCount;
+    }
+
+    public String songTitle(int song){
+        return titles.get(songTitle.get(song));
+    }
+
+    public int songLength(int song){
+        return songLength.get(song);
+    }
+
+    public int songAlbum(int song){
+        return songAlbum.get(song);
+    }
+
+    public int songLikes(int song){
+        return songLikes.get(song);
+    }
+
+    public void setSongLikes(int song, int likes){
+        songLikes.set(song, likes);
+    }
+
+    public int addSongLikes(int song, int delta){
+        return songLikes.add(song, delta);
+    }
+
+    // The users who liked the song, created on first use.
+    @SuppressWarnings("unchecked")
+    public LikeSet likers(int song){
+        AtomicReferenceArray<LikeSet> chunk = (AtomicReferenceArray<LikeSet>) likers[IntColumn.chunkOf(song)];
+        int slot = IntColumn.offsetOf(song);
+
+        LikeSet set = chunk.get(slot);
+        if(set == null) {
+            set = new LikeSet();
+            if(!chunk.compareAndSet(slot, null, set))
+                set = chunk.get(slot);
+        }
+        return set;
+    }
+
+    // The users who liked the song, or null if nobody has.
+    @SuppressWarnings("unchecked")
+    public LikeSet likersIfPresent(int song){
+        AtomicReferenceArray<LikeSet> chunk = (AtomicReferenceArray<LikeSet>) likers[IntColumn.chunkOf(song)];
+        return chunk.get(IntColumn.offsetOf(song));
+    }
+
+    public String albumTitle(int album){
+        return titles.get(albumTitle.get(album));
+    }
+
+    public int albumArtist(int album){
+        return albumArtist.get(album);
+    }
+
+    public Date albumReleaseDate(int album){
+        long millis = albumReleased.get(album);
+        return millis == NO_RELEASE_DATE ? null : new Date(millis);
+    }
+
+    public void setAlbumReleaseDate(int album, Date releaseDate){
+        albumReleased.set(album, toMillis(releaseDate));
+    }
+
+    private static long toMillis(Date date){
+        return date == null ? NO_RELEASE_DATE : date.getTime();
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Indexes
+
+    public int firstSongWithTitle(String title){
+        int titleId = titles.find(title);
+        return titleId == NONE ? NONE : firstSongWithTitle.get(titleId);
+    }
+
+    public int firstAlbumWithTitle(String title){
+        int titleId = titles.find(title);
+        return titleId == NONE ? NONE : firstAlbumWithTitle.get(titleId);
+    }
+
+    // Returns how many songs were visited.
+    public int forEachSongWithTitle(String title, IntConsumer action){
+        int titleId = titles.find(title);
+        if(titleId == NONE)
+            return 0;
+        return walk(firstSongWithTitle.get(titleId), nextSongWithTitle, action);
+    }
+
+    public int forEachSongOfAlbum(int album, IntConsumer action){
+        return walk(firstSongOfAlbum.get(album), nextSongOfAlbum, action);
+    }
+
+    // For walking an album a page at a time: NONE when the album has no songs, or after its last song.
+    public int firstSongOfAlbum(int album){
+        return firstSongOfAlbum.get(album);
+    }
+
+    public int nextSongOfAlbum(int song){
+        return nextSongOfAlbum.get(song);
+    }
+
+    // Songs with a length between minLength and maxLength, both inclusive, shortest first.
+    public int forEachSongWithLength(int minLength, int maxLength, IntConsumer action){
+        int visited = 0;
+        for(LengthIndex index : lengths.subMap(minLength, true, maxLength, true).values()) {
+            int size = index.size;
+            int[] ids = index.ids;
+            for(int i = 0; i < size; i++)
+                action.accept(ids[i]);
+            visited += size;
+        }
+        return visited;
+    }
+
+    private static int walk(int first, IntColumn next, IntConsumer action){
+        int visited = 0;
+        for(int song = first; song != NONE; song = next.get(song)) {
+            action.accept(song);
+            visited++;
+        }
+        return visited;
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Views
+
+    public boolean contains(Song song){
+        return song.getCatalogue() == this;
+    }
+
+    public Song song(int id){
+        return new Song(this, id);
+    }
+
+    public Album album(int id){
+        return new Album(this, id);
+    }
+
+    // Every song, in creation order. Adding to the catalogue grows the view.
+    public List<Song> songs(){
+        return new AbstractList<Song>() {
+            @Override
+            public Song get(int index){
+                if(index < 0 || index >= songCount)
+                    throw new IndexOutOfBoundsException("Song " + index + " of " + songCount);
+                return song(index);
+            }
+
+            @Override
+            public int size(){
+                return songCount;
+            }
+        };
+    }
+
+    public List<Album> albums(){
+        return new AbstractList<Album>() {
+            @Override
+            public Album get(int index){
+                if(index < 0 || index >= albumCount)
+                    throw new IndexOutOfBoundsException("Album " + index + " of " + albumCount);
+                return album(index);
+            }
+
+            @Override
+            public int size(){
+                return albumCount;
+            }
+        };
+    }
+
+    public SongList newSongList(){
+        return new SongList(this);
+    }
+
+    // The songs with the given length, in creation order, read from the length index when asked, so songs
+    // added later with that length show up in it. However many songs it covers, a view is one small object.
+    public LengthView songsWithLength(int length){
+        return new LengthView(this, length);
+    }
+
+    // Songs of a playlist made by a rule rather than listed, for snapshots to store the rule.
+    public interface LengthRule {
+        int getLength();
+    }
+
+    public static class LengthView extends AbstractList<Song> implements RandomAccess, LengthRule {
+        private final ColumnarCatalogue catalogue;
+        private final int length;
+        private volatile LengthIndex index;                                    // null until a song has the length
+
+        LengthView(ColumnarCatalogue catalogue, int length){
+            this.catalogue = catalogue;
+            this.length = length;
+        }
+
+        private LengthIndex index(){
+            LengthIndex found = index;
+            if(found == null)
+                index = found = catalogue.lengths.get(length);
+            return found;
+        }
+
+        @Override
+        public int getLength(){
+            return length;
+        }
+
+        @Override
+        public Song get(int index){
+            LengthIndex found = index();
+            int size = found == null ? 0 : found.size;
+            if(index < 0 || index >= size)
+                throw new IndexOutOfBoundsException("Song " + index + " of " + size);
+            return catalogue.song(found.ids[index]);
+        }
+
+        @Override
+        public int size(){
+            LengthIndex found = index();
+            return found == null ? 0 : found.size;
+        }
+    }
+
+    // A list of this catalogue's songs held as ids, 4 bytes a song, for playlists and query results.
+    // Songs of another catalogue are refused, as their ids mean nothing here.
+    // Not synchronized: fill it, then publish it.
+    public static class SongList extends AbstractList<Song> implements RandomAccess {
+        private final ColumnarCatalogue catalogue;
+        private int[] ids = new int[8];
+        private int size;
+
+        SongList(ColumnarCatalogue catalogue){
+            this.catalogue = catalogue;
+        }
+
+        public void addId(int id){
+            if(size == ids.length)
+                ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+
+        public int getId(int index){
+            if(index >= size)
+                throw new IndexOutOfBoundsException("Song " + index + " of " + size);
+            return ids[index];
+        }
+
+        @Override
+        public boolean add(Song song){
+            if(!catalogue.contains(song))
+                throw new IllegalArgumentException("Song " + song.getTitle() + " is not in this catalogue");
+            addId(song.getId());
+            return true;
+        }
+
+        @Override
+        public Song get(int index){
+            return catalogue.song(getId(index));
+        }
+
+        @Override
+        public int size(){
+            return size;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------
+
+    public int titleCount(){
+        return titles.size();
+    }
+
+    // Titles by dictionary id, with the ids the rows use, so snapshots write each distinct title once.
+    public String title(int titleId){
+        return titles.get(titleId);
+    }
+
+    public int songTitleId(int song){
+        return songTitle.get(song);
+    }
+
+    public int albumTitleId(int album){
+        return albumTitle.get(album);
+    }
+
+    // Bytes allocated for the columns, titles, length index and like set slots, on or off the heap;
+    // the like sets themselves are not included.
+    public long bytes(){
+        return titles.bytes()
+                + firstSongWithTitle.bytes() + lastSongWithTitle.bytes() + firstAlbumWithTitle.bytes()
+                + albumTitle.bytes() + albumArtist.bytes() + albumReleased.bytes()
+                + firstSongOfAlbum.bytes() + lastSongOfAlbum.bytes()
+                + songTitle.bytes() + songAlbum.bytes() + songLength.bytes() + songLikes.bytes()
+                + nextSongWithTitle.bytes() + nextSongOfAlbum.bytes() + lengthIndexBytes()
+                + IntColumn.capacity(likers.length) * REFERENCE_BYTES;
+    }
+
+    private long lengthIndexBytes(){
+        long bytes = 0;
+        for(LengthIndex index : lengths.values())
+            bytes += (long) index.ids.length * Integer.BYTES;
+        return bytes;
+    }
+}
@@ -0,0 +1,69 @@
+package com.driver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Outcome of one bulk import request, filled row by row as batches are applied.
+public class ImportResult {
+
+    // Only the first errors are kept, so a bad file can't blow up the response.
+    public static final int MAX_REPORTED_ERRORS = 1000;
+
+    public static class RowError {
+        private final long row;
+        private final String message;
+
+        public RowError(long row, String message){
+            this.row = row;
+            this.message = message;
+        }
+
+        public long getRow() {
+            return row;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    private long rows;
+    private long created;
+    private long failed;
+    private final List<RowError> errors = new ArrayList<>();
+
+    public void rowSucceeded(){
+        rows++;
+        created++;
+    }
+
+    public void rowFailed(String message){
+        rows++;
+        failed++;
+        if(errors.size() < MAX_REPORTED_ERRORS)
+            errors.add(new RowError(rows, message));
+    }
+
+    // A problem with the input itself, such as malformed JSON, after which reading stops.
+    public void inputFailed(String message){
+        failed++;
+        if(errors.size() < MAX_REPORTED_ERRORS)
+            errors.add(new RowError(rows + 1, message));
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public List<RowError> getErrors() {
+        return errors;
+    }
+}
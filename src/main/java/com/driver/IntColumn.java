@@ -0,0 +1,134 @@
+package com.driver;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// Growable column of ints, one slot per row, for ColumnarCatalogue. It grows a chunk at a time,
+// so existing values are never copied and a reader never sees a half-grown array. Chunks are int
+// arrays, or direct buffers outside the Java heap when offHeap is set.
+//
+// The first chunk holds FIRST_CHUNK_SIZE slots and each of the next ones doubles the room, up to
+// CHUNK_SIZE, after which every chunk is CHUNK_SIZE: an empty column costs a few KB and a full one
+// wastes at most a chunk. LongColumn and the catalogue's like sets use the same layout.
+//
+// Reads and writes are acquire/release, so a value written before a row is linked into an index
+// is visible to any reader that found the row through that index. Only one thread may grow the column.
+public class IntColumn {
+
+    static final int FIRST_CHUNK_BITS = 10;
+    static final int FIRST_CHUNK_SIZE = 1 << FIRST_CHUNK_BITS;
+    static final int CHUNK_BITS = 16;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // Chunks 0 to GROWING_CHUNKS - 1 together hold the first CHUNK_SIZE slots.
+    private static final int GROWING_CHUNKS = CHUNK_BITS - FIRST_CHUNK_BITS + 1;
+
+    private static final VarHandle HEAP = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle DIRECT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final boolean offHeap;
+    private final int empty;
+
+    // int[] or ByteBuffer chunks; the array is replaced, never modified, when a chunk is added.
+    private volatile Object[] chunks = new Object[0];
+
+    // Slots that were never set read as empty.
+    public IntColumn(boolean offHeap, int empty){
+        this.offHeap = offHeap;
+        this.empty = empty;
+    }
+
+    // The chunk holding a slot, and the slot's place in it. Slots below FIRST_CHUNK_SIZE are in chunk 0;
+    // up to CHUNK_SIZE a slot's highest bit picks its chunk, and the bits below it are the offset.
+    static int chunkOf(int index){
+        if(index < FIRST_CHUNK_SIZE)
+            return 0;
+        if(index < CHUNK_SIZE)
+            return 32 - FIRST_CHUNK_BITS - Integer.numberOfLeadingZeros(index);
+        return GROWING_CHUNKS - 1 + (index >>> CHUNK_BITS);
+    }
+
+    static int offsetOf(int index){
+        if(index < FIRST_CHUNK_SIZE)
+            return index;
+        if(index < CHUNK_SIZE)
+            return index - Integer.highestOneBit(index);
+        return index & CHUNK_MASK;
+    }
+
+    static int chunkSize(int chunk){
+        if(chunk == 0)
+            return FIRST_CHUNK_SIZE;
+        if(chunk < GROWING_CHUNKS)
+            return FIRST_CHUNK_SIZE << (chunk - 1);
+        return CHUNK_SIZE;
+    }
+
+    public int get(int index){
+        Object chunk = chunks[chunkOf(index)];
+        if(offHeap)
+            return (int) DIRECT.getAcquire((ByteBuffer) chunk, offsetOf(index) << 2);
+        return (int) HEAP.getAcquire((int[]) chunk, offsetOf(index));
+    }
+
+    public void set(int index, int value){
+        Object chunk = chunks[chunkOf(index)];
+        if(offHeap)
+            DIRECT.setRelease((ByteBuffer) chunk, offsetOf(index) << 2, value);
+        else
+            HEAP.setRelease((int[]) chunk, offsetOf(index), value);
+    }
+
+    // Atomic, for counters updated by concurrent requests. Returns the new value.
+    public int add(int index, int delta){
+        Object chunk = chunks[chunkOf(index)];
+        if(offHeap)
+            return (int) DIRECT.getAndAdd((ByteBuffer) chunk, offsetOf(index) << 2, delta) + delta;
+        return (int) HEAP.getAndAdd((int[]) chunk, offsetOf(index), delta) + delta;
+    }
+
+    // Makes index writable, adding chunks as needed.
+    public void ensureCapacity(int index){
+        Object[] current = chunks;
+        int needed = chunkOf(index) + 1;
+        if(needed <= current.length)
+            return;
+
+        Object[] grown = Arrays.copyOf(current, needed);
+        for(int i = current.length; i < needed; i++)
+            grown[i] = newChunk(chunkSize(i));
+        chunks = grown;
+    }
+
+    private Object newChunk(int size){
+        if(offHeap) {
+            ByteBuffer chunk = ByteBuffer.allocateDirect(size << 2).order(ByteOrder.nativeOrder());
+            if(empty != 0) {
+                for(int i = 0; i < size; i++)
+                    chunk.putInt(i << 2, empty);
+            }
+            return chunk;
+        }
+
+        int[] chunk = new int[size];
+        if(empty != 0)
+            Arrays.fill(chunk, empty);
+        return chunk;
+    }
+
+    // Slots allocated so far, whether or not they were set.
+    static long capacity(int chunks){
+        long slots = 0;
+        for(int i = 0; i < chunks; i++)
+            slots += chunkSize(i);
+        return slots;
+    }
+
+    public long bytes(){
+        return capacity(chunks.length) * Integer.BYTES;
+    }
+}
@@ -0,0 +1,173 @@
+package com.driver;
+
+import java.util.*;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+// Ranking of items by a score that only changes through refresh(), kept sorted as it changes
+// so popularity reads never scan the catalogue.
+// Ties go to the item added first, which is what the old list scans returned.
+//
+// Writers change the ranking under the lock. The best PUBLISHED items are also published as an immutable
+// list, which top() and top(k) read without the lock, so reads of the top never wait on likes. The list is
+// only rebuilt when a change reaches it: a like on an item outside the top that doesn't lift it in costs
+// nothing more, and refreshAll() rebuilds it once for a whole batch.
+public class Leaderboard<T> {
+
+    // Items kept in the published list; top(k) for a larger k reads the ranking under the lock.
+    static final int PUBLISHED = 100;
+
+    private static class Entry<T> {
+        final T item;
+        final long seq;
+        int score;
+        boolean published;
+
+        Entry(T item, long seq, int score){
+            this.item = item;
+            this.seq = seq;
+            this.score = score;
+        }
+    }
+
+    private static final Comparator<Entry<?>> RANKING = (a, b) -> {
+        if(a.score != b.score)
+            return Integer.compare(b.score, a.score);
+        return Long.compare(a.seq, b.seq);
+    };
+
+    private final ToIntFunction<T> scoreOf;
+    private final HashMap<T, Entry<T>> entries = new HashMap<>();
+    private final TreeSet<Entry<T>> ranking = new TreeSet<>(RANKING);
+    private long nextSeq;
+
+    // The published entries, best first, as they were when published. Their scores can't have changed
+    // since, as changing one republishes, so the last of them is the bar for getting in.
+    private List<Entry<T>> publishedEntries = new ArrayList<>();
+    private volatile List<T> published = Collections.emptyList();
+
+    public Leaderboard(ToIntFunction<T> scoreOf){
+        this.scoreOf = scoreOf;
+    }
+
+    public synchronized void add(T item){
+        if(entries.containsKey(item))
+            return;
+
+        Entry<T> entry = new Entry<>(item, nextSeq++, scoreOf.applyAsInt(item));
+        entries.put(item, entry);
+        ranking.add(entry);
+        if(reachesTop(entry))
+            publish();
+    }
+
+    // Re-reads the item's score. Reading it under the lock means the last refresh after
+    // concurrent increments always sees the final value, whatever order the refreshes run in.
+    public synchronized void refresh(T item){
+        if(reposition(item) && reachesTop(entries.get(item)))
+            publish();
+    }
+
+    // Same as refresh(item), except an item that isn't ranked yet is added, ranked among equal scores
+    // by seq instead of by when it was added. Lets a large catalogue rank only the items that have a score.
+    public synchronized void refresh(T item, long seq){
+        if(!entries.containsKey(item)) {
+            Entry<T> entry = new Entry<>(item, seq, scoreOf.applyAsInt(item));
+            entries.put(item, entry);
+            ranking.add(entry);
+            if(reachesTop(entry))
+                publish();
+            return;
+        }
+        refresh(item);
+    }
+
+    // refresh(item, seqOf(item)) for each item, publishing the top once at the end.
+    public synchronized void refreshAll(Collection<T> items, ToLongFunction<T> seqOf){
+        boolean top = false;
+        for(T item : items) {
+            Entry<T> entry = entries.get(item);
+            if(entry == null) {
+                entry = new Entry<>(item, seqOf.applyAsLong(item), scoreOf.applyAsInt(item));
+                entries.put(item, entry);
+                ranking.add(entry);
+            } else if(!reposition(item)) {
+                continue;
+            }
+            top |= reachesTop(entry);
+        }
+        if(top)
+            publish();
+    }
+
+    // Moves the item to its current score; false if it isn't ranked or the score is unchanged.
+    private boolean reposition(T item){
+        Entry<T> entry = entries.get(item);
+        if(entry == null)
+            return false;
+
+        int score = scoreOf.applyAsInt(item);
+        if(score == entry.score)
+            return false;
+
+        ranking.remove(entry);
+        entry.score = score;
+        ranking.add(entry);
+        return true;
+    }
+
+    // Whether the published list changes with this entry's new score: it was in it, or now ranks above its last.
+    private boolean reachesTop(Entry<T> entry){
+        if(entry.published)
+            return true;
+        if(entry.score <= 0)
+            return false;
+        return publishedEntries.size() < PUBLISHED
+                || RANKING.compare(entry, publishedEntries.get(publishedEntries.size() - 1)) < 0;
+    }
+
+    private void publish(){
+        for(Entry<T> entry : publishedEntries)
+            entry.published = false;
+
+        List<Entry<T>> best = new ArrayList<>(PUBLISHED);
+        List<T> items = new ArrayList<>(PUBLISHED);
+        for(Entry<T> entry : ranking) {
+            if(best.size() >= PUBLISHED || entry.score <= 0)
+                break;
+            entry.published = true;
+            best.add(entry);
+            items.add(entry.item);
+        }
+        publishedEntries = best;
+        published = Collections.unmodifiableList(items);
+    }
+
+    // The highest scoring item, or null when nothing has a positive score yet.
+    public T top(){
+        List<T> top = published;
+        return top.isEmpty() ? null : top.get(0);
+    }
+
+    // Up to k items with a positive score, best first, all from the same moment.
+    public List<T> top(int k){
+        if(k <= PUBLISHED) {
+            List<T> top = published;
+            return new ArrayList<>(top.subList(0, Math.min(Math.max(k, 0), top.size())));
+        }
+
+        synchronized (this) {
+            List<T> result = new ArrayList<>();
+            for(Entry<T> entry : ranking){
+                if(result.size() >= k || entry.score <= 0)
+                    break;
+                result.add(entry.item);
+            }
+            return result;
+        }
+    }
+
+    public synchronized int size(){
+        return entries.size();
+    }
+}
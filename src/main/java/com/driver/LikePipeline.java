@@ -0,0 +1,169 @@
+package com.driver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Optional asynchronous path for /like-song. The request thread validates the like and queues it;
+// one consumer thread drains the queue in batches and applies each batch in a single pass, so viral
+// spikes stop contending on the song and artist counters. Reads lag behind by at most the queue
+// depth plus the linger time.
+//
+// Callers were told their likes were taken, so a batch that fails is retried one like at a time. Likes
+// dedup by user, so a like the failed batch had already counted is only counted once. A like that fails
+// on its own is logged and counted in spotify.likes.dropped.
+//
+// Enabled with -Dspotify.likes.async=true. Optional:
+//   spotify.likes.queue.capacity   bounded queue size (default 65536)
+//   spotify.likes.batch.size       most likes applied per batch (default 1024)
+//   spotify.likes.linger.ms        how long the consumer waits to fill a batch (default 5)
+//   spotify.likes.backpressure     what a full queue does: BLOCK the caller (default), REJECT the like,
+//                                  or CALLER_RUNS to apply it synchronously on the request thread
+public class LikePipeline {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LikePipeline.class);
+
+    public enum Backpressure { BLOCK, REJECT, CALLER_RUNS }
+
+    public static class Like {
+        final User user;
+        final Song song;
+
+        public Like(User user, Song song){
+            this.user = user;
+            this.song = song;
+        }
+
+        public User getUser() {
+            return user;
+        }
+
+        public Song getSong() {
+            return song;
+        }
+    }
+
+    private final BlockingQueue<Like> queue;
+    private final int batchSize;
+    private final long lingerNanos;
+    private final Backpressure backpressure;
+    private final Consumer<List<Like>> applyBatch;
+    private final Thread consumer;
+    private volatile boolean running = true;
+
+    public LikePipeline(int capacity, int batchSize, long lingerMillis, Backpressure backpressure, Consumer<List<Like>> applyBatch){
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.backpressure = backpressure;
+        this.applyBatch = applyBatch;
+
+        Metrics.gauge("spotify.likes.queue.depth", queue, BlockingQueue::size);
+
+        consumer = new Thread(this::consume, "spotify-like-pipeline");
+        consumer.setDaemon(true);
+        consumer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    public static LikePipeline fromSystemProperties(Consumer<List<Like>> applyBatch){
+        if(!Boolean.getBoolean("spotify.likes.async"))
+            return null;
+
+        return new LikePipeline(
+                Integer.getInteger("spotify.likes.queue.capacity", 65536),
+                Integer.getInteger("spotify.likes.batch.size", 1024),
+                Long.getLong("spotify.likes.linger.ms", 5),
+                Backpressure.valueOf(System.getProperty("spotify.likes.backpressure", "BLOCK").toUpperCase()),
+                applyBatch);
+    }
+
+    public void submit(Like like) throws Exception {
+        switch(backpressure) {
+            case BLOCK:
+                queue.put(like);
+                break;
+            case REJECT:
+                if(!queue.offer(like))
+                    throw new Exception("Too many likes, try again later");
+                break;
+            case CALLER_RUNS:
+                if(!queue.offer(like)) {
+                    List<Like> single = new ArrayList<>(1);
+                    single.add(like);
+                    applyBatch.accept(single);
+                }
+                break;
+        }
+    }
+
+    private void consume(){
+        List<Like> batch = new ArrayList<>(batchSize);
+        while(running || !queue.isEmpty()) {
+            try {
+                Like first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if(first == null)
+                    continue;
+                batch.add(first);
+
+                // Linger briefly for a fuller batch, but never past lingerNanos after the first like arrived.
+                long deadline = System.nanoTime() + lingerNanos;
+                while(batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if(batch.size() >= batchSize || remaining <= 0)
+                        break;
+                    Like next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if(next == null)
+                        break;
+                    batch.add(next);
+                }
+
+                apply(batch);
+            } catch(InterruptedException e) {
+                running = false;
+                if(!batch.isEmpty())
+                    apply(batch);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void apply(List<Like> batch){
+        try {
+            applyBatch.accept(batch);
+            return;
+        } catch(RuntimeException e) {
+            LOG.warn("Batch of {} likes failed, applying them one at a time", batch.size(), e);
+        }
+
+        for(Like like : batch) {
+            List<Like> single = new ArrayList<>(1);
+            single.add(like);
+            try {
+                applyBatch.accept(single);
+            } catch(RuntimeException e) {
+                SpotifyMetrics.DROPPED_LIKES.increment();
+                LOG.error("Dropped a like of {} by {}", like.getSong().getTitle(), like.getUser().getMobile(), e);
+            }
+        }
+    }
+
+    // Lets the consumer apply everything already queued, then stops it.
+    public void close(){
+        running = false;
+        try {
+            consumer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch(InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
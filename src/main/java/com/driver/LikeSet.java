@@ -0,0 +1,178 @@
+package com.driver;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+// The users who liked one song, as dense user ids. add() and contains() are O(1) whatever the size.
+//
+// A song starts with a small sorted array, moves to an open-addressing int hash set as likes grow,
+// and to a bitmap once that is smaller than the hash table, which is where the hottest songs end up.
+// The hash set costs 8 to 16 bytes per like and a dense bitmap well under one, with no object per like.
+public class LikeSet {
+
+    private static final int ARRAY_MAX = 16;
+
+    // Exactly one of these is in use at a time.
+    private int[] array = new int[4];      // sorted, first size slots used
+    private int[] table;                   // id + 1 per slot, 0 for empty
+    private BitSet bits;
+
+    private int size;
+
+    public synchronized boolean add(int id){
+        if(bits != null) {
+            if(bits.get(id))
+                return false;
+            bits.set(id);
+            size++;
+            return true;
+        }
+
+        if(table != null) {
+            if(!insert(table, id))
+                return false;
+            size++;
+            if(size * 2 > table.length)
+                grow(id);
+            return true;
+        }
+
+        int at = Arrays.binarySearch(array, 0, size, id);
+        if(at >= 0)
+            return false;
+
+        at = -at - 1;
+        if(size == array.length)
+            array = Arrays.copyOf(array, size * 2);
+        System.arraycopy(array, at, array, at + 1, size - at);
+        array[at] = id;
+        size++;
+
+        if(size > ARRAY_MAX)
+            grow(id);
+        return true;
+    }
+
+    // Adds count distinct ids given in ascending order, going straight to the representation they end up in
+    // instead of growing through the others. For loading snapshots.
+    public synchronized void addAll(int[] ids, int count){
+        if(size > 0 || count <= ARRAY_MAX) {
+            for(int i = 0; i < count; i++)
+                add(ids[i]);
+            return;
+        }
+
+        size = count;
+        array = null;
+        int capacity = Integer.highestOneBit(count * 2) << 1;
+        if((long) ids[count - 1] / 8 < (long) capacity * 4) {
+            bits = new BitSet(ids[count - 1] + 1);
+            for(int i = 0; i < count; i++)
+                bits.set(ids[i]);
+            return;
+        }
+
+        table = new int[capacity];
+        for(int i = 0; i < count; i++)
+            insert(table, ids[i]);
+    }
+
+    public synchronized boolean contains(int id){
+        if(bits != null)
+            return bits.get(id);
+
+        if(table != null) {
+            int mask = table.length - 1;
+            for(int slot = mix(id) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                if(table[slot] == id + 1)
+                    return true;
+            }
+            return false;
+        }
+
+        return Arrays.binarySearch(array, 0, size, id) >= 0;
+    }
+
+    public synchronized int size(){
+        return size;
+    }
+
+    public synchronized void forEach(IntConsumer action){
+        if(bits != null)
+            bits.stream().forEach(action);
+        else if(table != null) {
+            for(int slot : table) {
+                if(slot != 0)
+                    action.accept(slot - 1);
+            }
+        }
+        else {
+            for(int i = 0; i < size; i++)
+                action.accept(array[i]);
+        }
+    }
+
+    public int[] toArray(){
+        int[] ids;
+        synchronized (this) {
+            ids = new int[size];
+            int[] next = {0};
+            forEach(id -> ids[next[0]++] = id);
+        }
+        return ids;
+    }
+
+    // Moves to a bigger hash table, or to a bitmap when a bitmap up to the highest id seen is smaller.
+    private void grow(int lastId){
+        int[] ids = new int[size];
+        int count = 0;
+        int maxId = lastId;
+        if(table != null) {
+            for(int slot : table) {
+                if(slot != 0) {
+                    ids[count++] = slot - 1;
+                    maxId = Math.max(maxId, slot - 1);
+                }
+            }
+        }
+        else {
+            System.arraycopy(array, 0, ids, 0, size);
+            count = size;
+            maxId = Math.max(maxId, array[size - 1]);
+        }
+
+        int capacity = Integer.highestOneBit(size * 2) << 1;             // load between 1/4 and 1/2
+        if((long) maxId / 8 < (long) capacity * 4) {
+            bits = new BitSet(maxId + 1);
+            for(int i = 0; i < count; i++)
+                bits.set(ids[i]);
+            table = null;
+            array = null;
+            return;
+        }
+
+        int[] bigger = new int[capacity];
+        for(int i = 0; i < count; i++)
+            insert(bigger, ids[i]);
+        table = bigger;
+        array = null;
+    }
+
+    private static boolean insert(int[] table, int id){
+        int mask = table.length - 1;
+        int slot = mix(id) & mask;
+        while(table[slot] != 0) {
+            if(table[slot] == id + 1)
+                return false;
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id + 1;
+        return true;
+    }
+
+    private static int mix(int id){
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,38 @@
+package com.driver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+// In-process shards: each call runs on the caller's thread against that shard's own maps and locks,
+// so writes to different shards never contend.
+public class LocalShardTransport implements ShardTransport {
+
+    private final SpotifyRepository[] shards;
+    private final Counter[] calls;
+
+    public LocalShardTransport(int shardCount){
+        shards = new SpotifyRepository[shardCount];
+        calls = new Counter[shardCount];
+        AtomicLong creations = new AtomicLong();
+        for(int i = 0; i < shardCount; i++) {
+            shards[i] = new SpotifyRepository(i, shardCount, creations);
+            calls[i] = Counter.builder("spotify.shard.calls")
+                    .description("Calls routed to a repository shard")
+                    .tag("shard", Integer.toString(i))
+                    .register(Metrics.globalRegistry);
+        }
+    }
+
+    @Override
+    public int shardCount(){
+        return shards.length;
+    }
+
+    @Override
+    public <T, E extends Exception> T call(int shard, ShardCall<T, E> call) throws E {
+        calls[shard].increment();
+        return call.apply(shards[shard]);
+    }
+}
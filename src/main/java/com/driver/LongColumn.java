@@ -0,0 +1,75 @@
+package com.driver;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// Growable column of longs, chunked like IntColumn, for values that don't fit an int such as epoch millis.
+// Reads and writes are acquire/release, so a long is never read half written. Only one thread may grow the column.
+public class LongColumn {
+
+    private static final VarHandle HEAP = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle DIRECT = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final boolean offHeap;
+    private final long empty;
+
+    // long[] or ByteBuffer chunks; the array is replaced, never modified, when a chunk is added.
+    private volatile Object[] chunks = new Object[0];
+
+    // Slots that were never set read as empty.
+    public LongColumn(boolean offHeap, long empty){
+        this.offHeap = offHeap;
+        this.empty = empty;
+    }
+
+    public long get(int index){
+        Object chunk = chunks[IntColumn.chunkOf(index)];
+        if(offHeap)
+            return (long) DIRECT.getAcquire((ByteBuffer) chunk, IntColumn.offsetOf(index) << 3);
+        return (long) HEAP.getAcquire((long[]) chunk, IntColumn.offsetOf(index));
+    }
+
+    public void set(int index, long value){
+        Object chunk = chunks[IntColumn.chunkOf(index)];
+        if(offHeap)
+            DIRECT.setRelease((ByteBuffer) chunk, IntColumn.offsetOf(index) << 3, value);
+        else
+            HEAP.setRelease((long[]) chunk, IntColumn.offsetOf(index), value);
+    }
+
+    // Makes index writable, adding chunks as needed.
+    public void ensureCapacity(int index){
+        Object[] current = chunks;
+        int needed = IntColumn.chunkOf(index) + 1;
+        if(needed <= current.length)
+            return;
+
+        Object[] grown = Arrays.copyOf(current, needed);
+        for(int i = current.length; i < needed; i++)
+            grown[i] = newChunk(IntColumn.chunkSize(i));
+        chunks = grown;
+    }
+
+    private Object newChunk(int size){
+        if(offHeap) {
+            ByteBuffer chunk = ByteBuffer.allocateDirect(size << 3).order(ByteOrder.nativeOrder());
+            if(empty != 0) {
+                for(int i = 0; i < size; i++)
+                    chunk.putLong(i << 3, empty);
+            }
+            return chunk;
+        }
+
+        long[] chunk = new long[size];
+        if(empty != 0)
+            Arrays.fill(chunk, empty);
+        return chunk;
+    }
+
+    public long bytes(){
+        return IntColumn.capacity(chunks.length) * Long.BYTES;
+    }
+}
@@ -0,0 +1,43 @@
+package com.driver;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+// Writes a Page as newline-delimited JSON, one object per item, straight to the response stream,
+// so nothing but the page itself is held while it is sent. The cursor for the next page goes in
+// the X-Next-Cursor header, which is left out after the last page.
+public class NdjsonResponse {
+
+    public static final String NDJSON = "application/x-ndjson";
+    public static final String NEXT_CURSOR = "X-Next-Cursor";
+
+    public interface ItemWriter<T> {
+        // Writes the item's fields; the enclosing object and the newline are written by the caller.
+        void write(JsonGenerator json, T item) throws IOException;
+    }
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    public static <T> ResponseEntity<StreamingResponseBody> of(Page<T> page, ItemWriter<T> writer){
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON));
+        if(page.getNextCursor() != null)
+            response.header(NEXT_CURSOR, page.getNextCursor().toString());
+
+        return response.body(out -> {
+            try(JsonGenerator json = JSON.createGenerator(out)) {
+                json.setRootValueSeparator(null);
+                for(T item : page.getItems()) {
+                    json.writeStartObject();
+                    writer.write(json, item);
+                    json.writeEndObject();
+                    json.writeRaw('\n');
+                }
+            }
+        });
+    }
+}
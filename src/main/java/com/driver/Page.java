@@ -0,0 +1,23 @@
+package com.driver;
+
+import java.util.List;
+
+// One page of a listing, and the cursor that fetches the next one, null after the last page.
+// Pages are at most SpotifyRepository.MAX_PAGE_SIZE items, whatever the size of the list behind them.
+public class Page<T> {
+    private final List<T> items;
+    private final Integer nextCursor;
+
+    public Page(List<T> items, Integer nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    public Integer getNextCursor() {
+        return nextCursor;
+    }
+}
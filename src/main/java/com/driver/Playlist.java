@@ -3,6 +3,7 @@ package com.driver;
 import java.util.List;
 
 public class Playlist {
+    private int id;                 // dense, assigned by SpotifyRepository in creation order
     private String title;
 
     public Playlist(){
@@ -13,6 +14,14 @@ public class Playlist {
         this.title = title;
     }
 
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
     public String getTitle() {
         return title;
     }
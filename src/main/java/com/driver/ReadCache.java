@@ -0,0 +1,56 @@
+package com.driver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+// Results of read-only queries, reused until the repository changes. Every write bumps the repository's
+// version, so an entry is good for exactly as long as the version it was computed at is current, and
+// clients polling an unchanged repository are answered from here.
+//
+// A result computed while a write lands may already include it; it is still tagged with the older
+// version, so the next read after the write recomputes it. A cached result is never older than its tag.
+public class ReadCache {
+
+    public interface Query<T, E extends Exception> {
+        T get() throws E;
+    }
+
+    // Keys are a query name and its arguments, so a client trying many arguments can't grow this
+    // without bound; when it fills up it starts over, which costs one recompute per hot key.
+    private static final int MAX_ENTRIES = 10_000;
+
+    private static class Entry {
+        final long version;
+        final Object value;
+
+        Entry(long version, Object value){
+            this.version = version;
+            this.value = value;
+        }
+    }
+
+    private final LongSupplier version;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public ReadCache(LongSupplier version){
+        this.version = version;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T, E extends Exception> T get(String key, Query<T, E> query) throws E {
+        long current = version.getAsLong();
+
+        Entry entry = entries.get(key);
+        if(entry != null && entry.version == current) {
+            SpotifyMetrics.READ_CACHE_HITS.increment();
+            return (T) entry.value;
+        }
+
+        SpotifyMetrics.READ_CACHE_MISSES.increment();
+        T value = query.get();
+        if(entries.size() >= MAX_ENTRIES)
+            entries.clear();
+        entries.put(key, new Entry(current, value));
+        return value;
+    }
+}
@@ -0,0 +1,378 @@
+package com.driver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+
+// "Listeners also liked": songs that go together because the same users liked them or have them in
+// their playlists. Kept up to date as users like songs and join playlists.
+//
+// Each user keeps their last few songs. A new song counts once together with each of them, in both
+// songs' neighbour lists. A neighbour list keeps the songs seen together most often, up to a bound: a song
+// not in a full list takes the place of the least frequent one and inherits its count (Space-Saving), so
+// frequent neighbours are never lost and counts are overestimated by at most the count replaced.
+// Memory is bounded by songs times neighbours plus users times history. Both are kept in columns indexed
+// by id, like the catalogue's.
+//
+// A playlist counts once for the user who creates or joins it: its first few songs join the history, and
+// count together with each other only, not with everything else the user has, so one playlist can't
+// displace the user's likes or cost more than a handful of updates.
+//
+// Recommending scores every neighbour of the user's recent songs by the cosine of their co-occurrence,
+// count / sqrt(users of a * users of b), summed over the recent songs, in a fork-join pool.
+//
+// Configured with system properties:
+//   spotify.recommend.neighbours   songs kept per song (default 32)
+//   spotify.recommend.history      recent songs kept per user (default 50)
+public class Recommender {
+
+    public static class Recommendation {
+        final Song song;
+        final double score;
+
+        Recommendation(Song song, double score){
+            this.song = song;
+            this.score = score;
+        }
+
+        public Song getSong() {
+            return song;
+        }
+
+        public double getScore() {
+            return score;
+        }
+    }
+
+    private static class Neighbours {
+        volatile int users;
+        int[] songs = new int[4];
+        int[] counts = new int[4];
+        int size;
+
+        synchronized void addUser(){
+            users++;
+        }
+
+        synchronized void add(int song, int max){
+            for(int i = 0; i < size; i++) {
+                if(songs[i] == song) {
+                    counts[i]++;
+                    return;
+                }
+            }
+            if(size < max) {
+                if(size == songs.length) {
+                    songs = Arrays.copyOf(songs, Math.min(size * 2, max));
+                    counts = Arrays.copyOf(counts, songs.length);
+                }
+                songs[size] = song;
+                counts[size++] = 1;
+                return;
+            }
+
+            int least = 0;
+            for(int i = 1; i < size; i++) {
+                if(counts[i] < counts[least])
+                    least = i;
+            }
+            songs[least] = song;
+            counts[least]++;
+        }
+
+        // Puts back a neighbour from a snapshot. A full list keeps the more frequent of it and its least frequent.
+        synchronized void restore(int song, int count, int max){
+            if(size < max) {
+                if(size == songs.length) {
+                    songs = Arrays.copyOf(songs, Math.min(size * 2, max));
+                    counts = Arrays.copyOf(counts, songs.length);
+                }
+                songs[size] = song;
+                counts[size++] = count;
+                return;
+            }
+
+            int least = 0;
+            for(int i = 1; i < size; i++) {
+                if(counts[i] < counts[least])
+                    least = i;
+            }
+            if(count > counts[least]) {
+                songs[least] = song;
+                counts[least] = count;
+            }
+        }
+    }
+
+    // The user's last songs, oldest overwritten first.
+    private static class History {
+        final int[] songs;
+        int size;
+        int next;
+
+        History(int capacity){
+            songs = new int[capacity];
+        }
+
+        // The songs before this one, or null if it is one of them already.
+        synchronized int[] add(int song){
+            for(int i = 0; i < size; i++) {
+                if(songs[i] == song)
+                    return null;
+            }
+            int[] previous = Arrays.copyOf(songs, size);
+            songs[next] = song;
+            next = (next + 1) % songs.length;
+            size = Math.min(size + 1, songs.length);
+            return previous;
+        }
+
+        synchronized int[] songs(){
+            return Arrays.copyOf(songs, size);
+        }
+
+        // Puts back a song from a snapshot, where songs are already distinct.
+        synchronized void restore(int song){
+            songs[next] = song;
+            next = (next + 1) % songs.length;
+            size = Math.min(size + 1, songs.length);
+        }
+
+        // Oldest first, for snapshots; restoring them in this order into an empty history rebuilds it.
+        synchronized int[] inOrder(){
+            int[] ordered = new int[size];
+            int oldest = size < songs.length ? 0 : next;
+            for(int i = 0; i < size; i++)
+                ordered[i] = songs[(oldest + i) % songs.length];
+            return ordered;
+        }
+    }
+
+    // Recent songs scored per task, below which a task scores them itself.
+    private static final int SONGS_PER_TASK = 8;
+
+    // Songs recorded for a playlist, from its start; the rest of a long playlist says little more about the user.
+    public static final int PLAYLIST_SONGS = 8;
+
+    private final int maxNeighbours;
+    private final int historySize;
+    private final ReferenceColumn<Neighbours> neighbours = new ReferenceColumn<>();
+    private final ReferenceColumn<History> histories = new ReferenceColumn<>();
+
+    public Recommender(int maxNeighbours, int historySize){
+        this.maxNeighbours = maxNeighbours;
+        this.historySize = historySize;
+    }
+
+    public static Recommender fromSystemProperties(){
+        return new Recommender(Integer.getInteger("spotify.recommend.neighbours", 32),
+                Integer.getInteger("spotify.recommend.history", 50));
+    }
+
+    // Records that the user liked the song. Repeats of a recent song are ignored.
+    public void record(int user, int song){
+        int[] previous = history(user).add(song);
+        if(previous == null)
+            return;
+
+        Neighbours added = neighbours(song);
+        added.addUser();
+        for(int other : previous) {
+            added.add(other, maxNeighbours);
+            neighbours(other).add(song, maxNeighbours);
+        }
+    }
+
+    // Records that the user created or joined a playlist starting with these songs, at most PLAYLIST_SONGS of them.
+    // Songs new to the user's history count together once; songs already in it are left as they are.
+    public void recordPlaylist(int user, int[] songs){
+        History history = history(user);
+        int[] added = new int[Math.min(songs.length, PLAYLIST_SONGS)];
+        int size = 0;
+        for(int i = 0; i < added.length; i++) {
+            if(history.add(songs[i]) != null)
+                added[size++] = songs[i];
+        }
+
+        for(int i = 0; i < size; i++) {
+            Neighbours of = neighbours(added[i]);
+            of.addUser();
+            for(int j = 0; j < size; j++) {
+                if(j != i)
+                    of.add(added[j], maxNeighbours);
+            }
+        }
+    }
+
+    private Neighbours neighbours(int song){
+        return neighbours.computeIfAbsent(song, s -> new Neighbours());
+    }
+
+    private History history(int user){
+        return histories.computeIfAbsent(user, u -> new History(historySize));
+    }
+
+    // Up to k songs for the user, best first, skipping their recent songs and any the filter says they have.
+    public List<Recommendation> recommend(int user, int k, IntPredicate has, IntFunction<Song> songOf){
+        History history = histories.get(user);
+        if(history == null || k < 1)
+            return new ArrayList<>();
+
+        int[] recent = history.songs();
+        Map<Integer, Double> scores = ForkJoinPool.commonPool().invoke(new Score(neighbours, recent, 0, recent.length));
+        for(int song : recent)
+            scores.remove(song);
+
+        // Worst first, so the root is the one to drop; equal scores go to the song created first.
+        PriorityQueue<Map.Entry<Integer, Double>> best = new PriorityQueue<>(
+                Map.Entry.<Integer, Double>comparingByValue().thenComparing(Map.Entry.comparingByKey(Comparator.reverseOrder())));
+        for(Map.Entry<Integer, Double> entry : scores.entrySet()) {
+            if(has.test(entry.getKey()))
+                continue;
+            best.add(entry);
+            if(best.size() > k)
+                best.poll();
+        }
+
+        List<Recommendation> result = new ArrayList<>(best.size());
+        while(!best.isEmpty()) {
+            Map.Entry<Integer, Double> entry = best.poll();
+            result.add(new Recommendation(songOf.apply(entry.getKey()), entry.getValue()));
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Snapshots keep the neighbour lists and histories as they are, so loading doesn't replay every like.
+    // Songs and users past the counts in the snapshot are left out. Each part is a list of records ending in 0.
+
+    void write(SpotifySnapshot.Output out, int songCount, int userCount) throws IOException {
+        for(int song = 0, end = Math.min(songCount, neighbours.capacity()); song < end; song++) {
+            Neighbours of = neighbours.get(song);
+            if(of == null)
+                continue;
+
+            int users;
+            int[] songs;
+            int[] counts;
+            synchronized (of) {
+                users = of.users;
+                songs = Arrays.copyOf(of.songs, of.size);
+                counts = Arrays.copyOf(of.counts, of.size);
+            }
+            int kept = 0;
+            for(int neighbour : songs) {
+                if(neighbour < songCount)
+                    kept++;
+            }
+
+            out.writeVarInt(song + 1);
+            out.writeVarInt(users);
+            out.writeVarInt(kept);
+            for(int n = 0; n < songs.length; n++) {
+                if(songs[n] < songCount) {
+                    out.writeVarInt(songs[n]);
+                    out.writeVarInt(counts[n]);
+                }
+            }
+        }
+        out.writeVarInt(0);
+
+        for(int user = 0, end = Math.min(userCount, histories.capacity()); user < end; user++) {
+            History history = histories.get(user);
+            if(history == null)
+                continue;
+
+            int[] songs = history.inOrder();
+            int kept = 0;
+            for(int song : songs) {
+                if(song < songCount)
+                    kept++;
+            }
+            out.writeVarInt(user + 1);
+            out.writeVarInt(kept);
+            for(int song : songs) {
+                if(song < songCount)
+                    out.writeVarInt(song);
+            }
+        }
+        out.writeVarInt(0);
+    }
+
+    // Replaces everything recorded so far with what write() wrote; limits lower than the writer's drop the excess.
+    void read(ByteBuffer in){
+        neighbours.clear();
+        histories.clear();
+
+        for(int song = SpotifySnapshot.readVarInt(in) - 1; song >= 0; song = SpotifySnapshot.readVarInt(in) - 1) {
+            Neighbours of = neighbours(song);
+            of.users = SpotifySnapshot.readVarInt(in);
+            int size = SpotifySnapshot.readVarInt(in);
+            for(int n = 0; n < size; n++)
+                of.restore(SpotifySnapshot.readVarInt(in), SpotifySnapshot.readVarInt(in), maxNeighbours);
+        }
+
+        for(int user = SpotifySnapshot.readVarInt(in) - 1; user >= 0; user = SpotifySnapshot.readVarInt(in) - 1) {
+            History history = history(user);
+            int size = SpotifySnapshot.readVarInt(in);
+            for(int i = 0; i < size; i++)
+                history.restore(SpotifySnapshot.readVarInt(in));
+        }
+    }
+
+    // Static, so it doesn't serialize the whole Recommender with it; tasks are never serialized in practice.
+    private static class Score extends RecursiveTask<Map<Integer, Double>> {
+        private static final long serialVersionUID = 1L;
+
+        final transient ReferenceColumn<Neighbours> neighbours;
+        final int[] recent;
+        final int from;
+        final int to;
+
+        Score(ReferenceColumn<Neighbours> neighbours, int[] recent, int from, int to){
+            this.neighbours = neighbours;
+            this.recent = recent;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Map<Integer, Double> compute(){
+            if(to - from > SONGS_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                Score left = new Score(neighbours, recent, from, mid);
+                left.fork();
+                Map<Integer, Double> scores = new Score(neighbours, recent, mid, to).compute();
+                left.join().forEach((song, score) -> scores.merge(song, score, Double::sum));
+                return scores;
+            }
+
+            Map<Integer, Double> scores = new HashMap<>();
+            for(int i = from; i < to; i++) {
+                Neighbours of = neighbours.get(recent[i]);
+                if(of == null)
+                    continue;
+
+                int users;
+                int[] songs;
+                int[] counts;
+                synchronized (of) {
+                    users = of.users;
+                    songs = Arrays.copyOf(of.songs, of.size);
+                    counts = Arrays.copyOf(of.counts, of.size);
+                }
+                for(int n = 0; n < songs.length; n++) {
+                    Neighbours neighbour = neighbours.get(songs[n]);
+                    int neighbourUsers = neighbour == null ? 1 : Math.max(1, neighbour.users);
+                    scores.merge(songs[n], counts[n] / Math.sqrt((double) Math.max(1, users) * neighbourUsers), Double::sum);
+                }
+            }
+            return scores;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.driver;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+
+// Growable column of objects, one slot per id, chunked like IntColumn, for state kept per song or user
+// and created on first use. Ids index it directly, so there is no boxing and no hash table, and an id
+// nothing was made for costs an empty slot.
+//
+// Reads are lock-free, and a slot is filled by compare-and-set, so two threads making the same object
+// end up sharing one. Growing takes the column's monitor, so any thread may grow it.
+public class ReferenceColumn<T> {
+
+    // A slot is a reference: 4 bytes with compressed references, the default for heaps below 32 GB.
+    private static final int REFERENCE_BYTES = 4;
+
+    // AtomicReferenceArray chunks; the array is replaced, never modified, when a chunk is added.
+    private volatile Object[] chunks = new Object[0];
+
+    // The object in the slot, or null if there is none.
+    @SuppressWarnings("unchecked")
+    public T get(int index){
+        Object[] current = chunks;
+        int chunk = IntColumn.chunkOf(index);
+        if(chunk >= current.length)
+            return null;
+        return ((AtomicReferenceArray<T>) current[chunk]).get(IntColumn.offsetOf(index));
+    }
+
+    // The object in the slot, made and put there first if there is none.
+    @SuppressWarnings("unchecked")
+    public T computeIfAbsent(int index, IntFunction<T> create){
+        ensureCapacity(index);
+        AtomicReferenceArray<T> chunk = (AtomicReferenceArray<T>) chunks[IntColumn.chunkOf(index)];
+        int slot = IntColumn.offsetOf(index);
+
+        T value = chunk.get(slot);
+        if(value == null) {
+            value = create.apply(index);
+            if(!chunk.compareAndSet(slot, null, value))
+                value = chunk.get(slot);
+        }
+        return value;
+    }
+
+    // Makes index writable, adding chunks as needed.
+    public void ensureCapacity(int index){
+        int needed = IntColumn.chunkOf(index) + 1;
+        if(needed <= chunks.length)
+            return;
+
+        synchronized (this) {
+            Object[] current = chunks;
+            if(needed <= current.length)
+                return;
+            Object[] grown = Arrays.copyOf(current, needed);
+            for(int i = current.length; i < needed; i++)
+                grown[i] = new AtomicReferenceArray<T>(IntColumn.chunkSize(i));
+            chunks = grown;
+        }
+    }
+
+    // Slots below this may hold objects.
+    public int capacity(){
+        return (int) Math.min(IntColumn.capacity(chunks.length), Integer.MAX_VALUE);
+    }
+
+    public synchronized void clear(){
+        chunks = new Object[0];
+    }
+
+    public long bytes(){
+        return IntColumn.capacity(chunks.length) * REFERENCE_BYTES;
+    }
+}
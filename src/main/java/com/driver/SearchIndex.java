@@ -0,0 +1,300 @@
+package com.driver;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Search-as-you-type over song, album and artist titles, kept up to date by the repository's creates.
+// Each distinct title is one entry, however many songs, albums and artists carry it.
+//
+// Matching ignores case. A query first matches the titles it is a prefix of, from a sorted map of the
+// lowercased titles. If that leaves room, titles within a small edit distance of the query are added,
+// comparing the query with the title's beginning so a half-typed word with a typo still matches.
+// An edit is an inserted, deleted or replaced letter, or two neighbouring letters swapped.
+// Those are found through trigram postings: an edit changes at most four of the query's trigrams, so a
+// title within d edits shares at least t = n - 4d of the query's n trigrams. Of the posting lists of the
+// query's trigrams, such a title is in at least one of all but the t - 1 longest, so only the titles in
+// those lists that share t trigrams are compared, which keeps common trigrams like "the" out of the way.
+// Queries too short to keep three trigrams through their edits only match prefixes.
+public class SearchIndex {
+
+    public static final int SONG = 1;
+    public static final int ALBUM = 2;
+    public static final int ARTIST = 4;
+
+    public static class Hit {
+        final String title;
+        final int kinds;
+        final int distance;
+
+        Hit(String title, int kinds, int distance){
+            this.title = title;
+            this.kinds = kinds;
+            this.distance = distance;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        // Which of song, album and artist carry the title.
+        public List<String> getTypes() {
+            List<String> types = new ArrayList<>(3);
+            if((kinds & SONG) != 0)
+                types.add("song");
+            if((kinds & ALBUM) != 0)
+                types.add("album");
+            if((kinds & ARTIST) != 0)
+                types.add("artist");
+            return types;
+        }
+
+        // Edits between the query and the start of the title; 0 for prefix matches.
+        public int getDistance() {
+            return distance;
+        }
+
+        int getKinds() {
+            return kinds;
+        }
+    }
+
+    // Best first: closest, then alphabetical ignoring case.
+    static final Comparator<Hit> RANKING = Comparator.comparingInt(Hit::getDistance)
+            .thenComparing(hit -> normalize(hit.getTitle()))
+            .thenComparing(Hit::getTitle);
+
+    private static final int MAX_FUZZY_LENGTH = 64;
+    // Bounds the titles looked at per query when even the query's rarest trigrams are common.
+    private static final int MAX_CANDIDATES = 1 << 16;
+    private static final char PAD = '\u0001';
+
+    private static class Entry {
+        final String title;
+        final String key;
+        int kinds;
+
+        Entry(String title, String key){
+            this.title = title;
+            this.key = key;
+        }
+    }
+
+    // Entry ids in the order entries were added.
+    private static class Postings {
+        int[] ids = new int[2];
+        int size;
+
+        void add(int id){
+            if(size == ids.length)
+                ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+
+        // First position from `from` on holding an id of at least `id`, galloping ahead then bisecting,
+        // so walking a long list with ascending ids costs about the log of each gap.
+        int seek(int from, int id){
+            int step = 1;
+            int hi = from;
+            while(hi < size && ids[hi] < id) {
+                from = hi + 1;
+                hi += step;
+                step <<= 1;
+            }
+            hi = Math.min(hi, size);
+            while(from < hi) {
+                int mid = (from + hi) >>> 1;
+                if(ids[mid] < id)
+                    from = mid + 1;
+                else
+                    hi = mid;
+            }
+            return from;
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<Entry> entries = new ArrayList<>();                         // position is the entry's id
+    private final HashMap<String, Integer> entryIds = new HashMap<>();             // title -> entry id
+    private final TreeMap<String, Postings> prefixes = new TreeMap<>();            // lowercased title -> entry ids
+    private final HashMap<Long, Postings> trigrams = new HashMap<>();
+
+    static String normalize(String title){
+        return title.toLowerCase(Locale.ROOT);
+    }
+
+    public void add(String title, int kind){
+        if(title == null || title.isEmpty())
+            return;
+
+        lock.writeLock().lock();
+        try {
+            Integer id = entryIds.get(title);
+            if(id != null) {
+                entries.get(id).kinds |= kind;
+                return;
+            }
+
+            id = entries.size();
+            Entry entry = new Entry(title, normalize(title));
+            entry.kinds = kind;
+            entries.add(entry);
+            entryIds.put(title, id);
+            prefixes.computeIfAbsent(entry.key, k -> new Postings()).add(id);
+            for(long trigram : trigrams(entry.key))
+                trigrams.computeIfAbsent(trigram, t -> new Postings()).add(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size(){
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Up to limit titles matching the query, best first.
+    public List<Hit> search(String query, int limit){
+        String key = normalize(query);
+        List<Hit> hits = new ArrayList<>();
+        if(key.isEmpty() || limit < 1)
+            return hits;
+
+        lock.readLock().lock();
+        try {
+            for(Postings ids : prefixes.subMap(key, true, key + Character.MAX_VALUE, false).values()) {
+                for(int i = 0; i < ids.size && hits.size() < limit; i++) {
+                    Entry entry = entries.get(ids.ids[i]);
+                    hits.add(new Hit(entry.title, entry.kinds, 0));
+                }
+                if(hits.size() >= limit)
+                    return hits;
+            }
+
+            // Every prefix match is in already, so the fuzzy ones are those at a distance of 1 or more.
+            if(key.length() <= MAX_FUZZY_LENGTH) {
+                List<Hit> fuzzy = fuzzy(key);
+                fuzzy.sort(RANKING);
+                hits.addAll(fuzzy.subList(0, Math.min(limit - hits.size(), fuzzy.size())));
+            }
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<Hit> fuzzy(String key){
+        int maxEdits = key.length() < 10 ? 1 : 2;
+
+        Set<Long> grams = new LinkedHashSet<>(trigrams(key));
+        List<Postings> lists = new ArrayList<>();
+        for(long trigram : grams) {
+            Postings ids = trigrams.get(trigram);
+            if(ids != null)
+                lists.add(ids);
+        }
+        lists.sort(Comparator.comparingInt(ids -> ids.size));
+
+        // Titles within maxEdits share at least this many of the query's trigrams.
+        int needed = grams.size() - 4 * maxEdits;
+        if(needed < 3 || needed > lists.size())
+            return new ArrayList<>();
+        int generators = lists.size() - needed + 1;
+
+        int candidateCount = 0;
+        for(int l = 0; l < generators; l++)
+            candidateCount += lists.get(l).size;
+        int[] candidates = new int[Math.min(candidateCount, MAX_CANDIDATES)];
+        int filled = 0;
+        for(int l = 0; l < generators && filled < candidates.length; l++) {
+            Postings ids = lists.get(l);
+            int take = Math.min(ids.size, candidates.length - filled);
+            System.arraycopy(ids.ids, 0, candidates, filled, take);
+            filled += take;
+        }
+        Arrays.sort(candidates, 0, filled);
+
+        // A run of the same id is how many of the shortest lists hold it. The longer lists are walked alongside
+        // the candidates, which are in id order like the postings. Only titles sharing enough trigrams get
+        // their distance computed.
+        int[] cursors = new int[lists.size()];
+        List<Hit> hits = new ArrayList<>();
+        for(int i = 0; i < filled; ) {
+            int id = candidates[i];
+            int shared = 0;
+            while(i < filled && candidates[i] == id) {
+                shared++;
+                i++;
+            }
+            for(int l = generators; l < lists.size() && shared < needed; l++) {
+                Postings ids = lists.get(l);
+                cursors[l] = ids.seek(cursors[l], id);
+                if(cursors[l] < ids.size && ids.ids[cursors[l]] == id)
+                    shared++;
+            }
+            if(shared < needed)
+                continue;
+
+            Entry entry = entries.get(id);
+            int distance = prefixDistance(key, entry.key, maxEdits);
+            if(distance > 0 && distance <= maxEdits)
+                hits.add(new Hit(entry.title, entry.kinds, distance));
+        }
+        return hits;
+    }
+
+    // Trigrams of the key after two padding characters, so the first letters count as much as the rest;
+    // a key of n characters has n of them. The three chars are packed and scrambled by an odd multiplier,
+    // which keeps trigrams distinct while giving Long.hashCode low bits that differ.
+    private static List<Long> trigrams(String key){
+        List<Long> result = new ArrayList<>(key.length());
+        char a = PAD;
+        char b = PAD;
+        for(int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            result.add((((long) a << 32) | ((long) b << 16) | c) * 0x9E3779B97F4A7C15L);
+            a = b;
+            b = c;
+        }
+        return result;
+    }
+
+    // Least edits turning the query into some prefix of the title, or more than maxEdits once it is clear
+    // nothing closer exists. Optimal string alignment distance, by columns of the title, keeping the best
+    // final row.
+    static int prefixDistance(String query, String title, int maxEdits){
+        int m = query.length();
+        int[] beforePrevious = new int[m + 1];
+        int[] previous = new int[m + 1];
+        int[] current = new int[m + 1];
+        for(int i = 0; i <= m; i++)
+            previous[i] = i;
+
+        int best = previous[m];
+        for(int j = 1; j <= title.length(); j++) {
+            char c = title.charAt(j - 1);
+            current[0] = j;
+            int columnMin = current[0];
+            for(int i = 1; i <= m; i++) {
+                char q = query.charAt(i - 1);
+                int cost = q == c ? 0 : 1;
+                current[i] = Math.min(Math.min(previous[i] + 1, current[i - 1] + 1), previous[i - 1] + cost);
+                if(i > 1 && j > 1 && q == title.charAt(j - 2) && query.charAt(i - 2) == c)
+                    current[i] = Math.min(current[i], beforePrevious[i - 2] + 1);
+                columnMin = Math.min(columnMin, current[i]);
+            }
+            best = Math.min(best, current[m]);
+            if(columnMin > maxEdits)
+                break;
+
+            int[] recycled = beforePrevious;
+            beforePrevious = previous;
+            previous = current;
+            current = recycled;
+        }
+        return best;
+    }
+}
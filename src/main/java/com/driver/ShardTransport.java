@@ -0,0 +1,17 @@
+package com.driver;
+
+// How ShardedSpotifyRepository reaches its shards, which live in this JVM. A call is a closure run against
+// the shard's repository, and entities are passed and returned as live objects (songs and albums are
+// routed by the catalogue they belong to), so calls don't cross process boundaries. Shards on other
+// nodes would need calls as serializable commands with ids in place of objects; this is only the seam
+// where calls go through, for counting them and swapping how shards are held.
+public interface ShardTransport {
+
+    interface ShardCall<T, E extends Exception> {
+        T apply(SpotifyRepository shard) throws E;
+    }
+
+    int shardCount();
+
+    <T, E extends Exception> T call(int shard, ShardCall<T, E> call) throws E;
+}
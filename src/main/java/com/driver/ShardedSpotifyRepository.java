@@ -0,0 +1,502 @@
+package com.driver;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A repository partitioned over several in-process shards, each a complete SpotifyRepository with its own
+// maps, catalogue and locks, reached through a ShardTransport. Enabled with -Dspotify.shards=<n>. Sharding
+// splits the locks and indexes so writes to different shards never contend; it doesn't spread the data
+// over several processes.
+//
+// A sharded repository is not journalled, snapshotted, exported or imported: the service refuses to start
+// with both -Dspotify.shards and -Dspotify.data.dir, and the export and import endpoints answer with an error.
+//
+// Placement:
+//   users                          by mobile; ids are unique across shards, and id % n is the user's shard
+//   artists, their albums, songs   by artist name, so an album and its songs never leave the artist's shard
+//   playlists                      with their creator; id % n is the playlist's shard
+//
+// Only the methods that touch repository state are implemented here, to route to the owning shard; the
+// API methods inherited from AbstractSpotifyRepository are written in terms of them, so they validate and
+// route the same way. The router holds no repository state of its own besides the title routes.
+//
+// Cross-shard work is done here: a like reads the user from one shard and counts on the song's shard,
+// length and title queries gather from every shard, and the popular and trending reads merge each shard's
+// top, breaking ties by the order the shards created the songs and artists in, as one repository would.
+// Titles route through the maps below to the shard of their first album, song or playlist: a create
+// reserves the title's route before it runs, so the first create to start owns the title, as it would in
+// one repository. Songs sharing a title are gathered shard by shard, so their order across shards is not
+// creation order.
+public class ShardedSpotifyRepository extends AbstractSpotifyRepository {
+
+    private final ShardTransport transport;
+    private final int shardCount;
+    // Songs and albums are views of a shard's catalogue, so the catalogue object names the shard.
+    private final IdentityHashMap<ColumnarCatalogue, Integer> catalogueShards = new IdentityHashMap<>();
+
+    private final ConcurrentHashMap<String, Integer> albumShards = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> songShards = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> playlistShards = new ConcurrentHashMap<>();
+
+    public ShardedSpotifyRepository(ShardTransport transport){
+        this.transport = transport;
+        this.shardCount = transport.shardCount();
+        for(int i = 0; i < shardCount; i++)
+            catalogueShards.put(transport.call(i, shard -> shard.catalogue), i);
+    }
+
+    public int shardCount(){
+        return shardCount;
+    }
+
+    public SpotifyRepository shard(int shard){
+        return transport.call(shard, repository -> repository);
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Routing
+
+    private int shardOf(String key){
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return Math.floorMod(h, shardCount);
+    }
+
+    private int shardOf(int userOrPlaylistId){
+        return Math.floorMod(userOrPlaylistId, shardCount);
+    }
+
+    private int shardOf(Song song){
+        return catalogueShards.get(song.getCatalogue());
+    }
+
+    private int shardOf(Album album){
+        return catalogueShards.get(album.getCatalogue());
+    }
+
+    private <T, E extends Exception> T call(int shard, ShardTransport.ShardCall<T, E> call) throws E {
+        return transport.call(shard, call);
+    }
+
+    // Versions only grow, so their sum only changes when some shard's does.
+    @Override
+    public long getVersion(){
+        long version = 0;
+        for(int i = 0; i < shardCount; i++)
+            version += call(i, SpotifyRepository::getVersion);
+        return version;
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Users
+
+    @Override
+    public User createUser(String name, String mobile){
+        return call(shardOf(mobile), shard -> shard.createUser(name,mobile));
+    }
+
+    @Override
+    public User checkIfUserExists(String mobile){
+        if(mobile == null)
+            return null;
+        return call(shardOf(mobile), shard -> shard.checkIfUserExists(mobile));
+    }
+
+    @Override
+    public User getUserById(int id){
+        return call(shardOf(id), shard -> shard.getUserById(id));
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Catalogue
+
+    @Override
+    public Artist createArtist(String name){
+        return call(shardOf(name), shard -> shard.createArtist(name));
+    }
+
+    @Override
+    public Artist checkIfArtistExists(String artistName){
+        if(artistName == null)
+            return null;
+        return call(shardOf(artistName), shard -> shard.checkIfArtistExists(artistName));
+    }
+
+    @Override
+    Album createAlbum(String title, String artistName, Date releaseDate){
+        int shard = shardOf(artistName);
+        albumShards.putIfAbsent(title,shard);
+        return call(shard, repository -> repository.createAlbum(title,artistName,releaseDate));
+    }
+
+    @Override
+    public Album checkIfAlbumExists(String albumName){
+        Integer shard = albumName == null ? null : albumShards.get(albumName);
+        if(shard == null)
+            return null;
+        return call(shard, repository -> repository.checkIfAlbumExists(albumName));
+    }
+
+    @Override
+    Song addSong(String title, Album album, int length){
+        int shard = shardOf(album);
+        songShards.putIfAbsent(title,shard);
+        return call(shard, repository -> repository.addSong(title,album,length));
+    }
+
+    @Override
+    public Song checkIfSongExists(String songTitle){
+        Integer shard = songTitle == null ? null : songShards.get(songTitle);
+        if(shard == null)
+            return null;
+        return call(shard, repository -> repository.checkIfSongExists(songTitle));
+    }
+
+    @Override
+    public Album getAlbumOfTheSong(Song song){
+        return call(shardOf(song), shard -> shard.getAlbumOfTheSong(song));
+    }
+
+    @Override
+    public Artist getArtistOfTheAlbum(Album album){
+        return call(shardOf(album), shard -> shard.getArtistOfTheAlbum(album));
+    }
+
+    @Override
+    public LikeSet getLikesOfTheSong(Song song){
+        return call(shardOf(song), shard -> shard.getLikesOfTheSong(song));
+    }
+
+    @Override
+    public List<Song> getSongWithGivenLength(int length){
+        return getSongsWithLengthBetween(length,length);
+    }
+
+    @Override
+    public List<Song> getSongsWithLengthBetween(int minLength, int maxLength){
+        List<Song> listOfSong = newList();
+        for(int i = 0; i < shardCount; i++)
+            listOfSong.addAll(call(i, shard -> shard.getSongsWithLengthBetween(minLength,maxLength)));
+        return listOfSong;
+    }
+
+    // The shards' views of the length one after the other, read when asked, like a single catalogue's view.
+    @Override
+    List<Song> songsWithLength(int length){
+        List<List<Song>> views = new ArrayList<>(shardCount);
+        for(int i = 0; i < shardCount; i++)
+            views.add(call(i, shard -> shard.songsWithLength(length)));
+        return new LengthView(length, views);
+    }
+
+    private static class LengthView extends AbstractList<Song> implements RandomAccess, ColumnarCatalogue.LengthRule {
+        private final int length;
+        private final List<List<Song>> views;
+
+        LengthView(int length, List<List<Song>> views){
+            this.length = length;
+            this.views = views;
+        }
+
+        @Override
+        public int getLength(){
+            return length;
+        }
+
+        @Override
+        public Song get(int index){
+            int offset = index;
+            for(List<Song> view : views) {
+                int size = view.size();
+                if(offset >= 0 && offset < size)
+                    return view.get(offset);
+                offset -= size;
+            }
+            throw new IndexOutOfBoundsException("Song " + index + " of " + size());
+        }
+
+        @Override
+        public int size(){
+            int size = 0;
+            for(List<Song> view : views)
+                size += view.size();
+            return size;
+        }
+    }
+
+    // Songs gathered from several shards can't be ids into one catalogue, so they are kept as songs;
+    // the playlist's shard turns them into ids if they all turn out to be its own.
+    @Override
+    List<Song> newSongList(){
+        return newList();
+    }
+
+    @Override
+    public void getSongsWithGivenTitle(String title, List<Song> songList, Set<Song> seen){
+        for(int i = 0; i < shardCount; i++) {
+            call(i, shard -> {
+                shard.getSongsWithGivenTitle(title,songList,seen);
+                return null;
+            });
+        }
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Playlists
+
+    @Override
+    Playlist addPlaylist(User user, Playlist playlist, List<Song> listOfSongs){
+        int shard = shardOf(user.getId());
+        playlistShards.putIfAbsent(playlist.getTitle(),shard);
+        return call(shard, repository -> repository.addPlaylist(user,playlist,listOfSongs));
+    }
+
+    @Override
+    public Playlist checkIfPlaylistExists(String playlistTitle){
+        Integer shard = playlistTitle == null ? null : playlistShards.get(playlistTitle);
+        if(shard == null)
+            return null;
+        return call(shard, repository -> repository.checkIfPlaylistExists(playlistTitle));
+    }
+
+    @Override
+    public Playlist getPlaylistById(int id){
+        return call(shardOf(id), shard -> shard.getPlaylistById(id));
+    }
+
+    @Override
+    public boolean checkIfUserIsACreator(User user, Playlist playlist){
+        return call(shardOf(playlist.getId()), shard -> shard.checkIfUserIsACreator(user,playlist));
+    }
+
+    @Override
+    public boolean checkIfUserIsAListener(User user, Playlist playlist){
+        return call(shardOf(playlist.getId()), shard -> shard.checkIfUserIsAListener(user,playlist));
+    }
+
+    @Override
+    boolean addListener(User user, Playlist playlist){
+        return call(shardOf(playlist.getId()), shard -> shard.addListener(user,playlist));
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Listings
+
+    @Override
+    public Page<Song> getPlaylistSongs(int playlistId, Integer cursor, int limit) throws Exception {
+        return call(shardOf(playlistId), shard -> shard.getPlaylistSongs(playlistId,cursor,limit));
+    }
+
+    @Override
+    public Page<User> getPlaylistListeners(int playlistId, Integer cursor, int limit) throws Exception {
+        return call(shardOf(playlistId), shard -> shard.getPlaylistListeners(playlistId,cursor,limit));
+    }
+
+    @Override
+    public Page<Album> getArtistAlbums(String artistName, Integer cursor, int limit) throws Exception {
+        if(artistName == null)
+            throw new Exception("Artist does not exist");
+        return call(shardOf(artistName), shard -> shard.getArtistAlbums(artistName,cursor,limit));
+    }
+
+    @Override
+    public Page<Song> getAlbumSongs(String albumTitle, Integer cursor, int limit) throws Exception {
+        Integer shard = albumTitle == null ? null : albumShards.get(albumTitle);
+        if(shard == null)
+            throw new Exception("Album does not exist");
+        return call(shard, repository -> repository.getAlbumSongs(albumTitle,cursor,limit));
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Likes
+
+    // The song's shard holds its like set, its artist and both leaderboards; the user only lends its id.
+    @Override
+    Song likeSong(User user, Song song){
+        return call(shardOf(song), shard -> shard.likeSong(user,song));
+    }
+
+    @Override
+    public void applyLikes(List<LikePipeline.Like> likes){
+        List<List<LikePipeline.Like>> byShard = new ArrayList<>(shardCount);
+        for(int i = 0; i < shardCount; i++)
+            byShard.add(new ArrayList<>());
+        for(LikePipeline.Like like : likes)
+            byShard.get(shardOf(like.getSong())).add(like);
+
+        for(int i = 0; i < shardCount; i++) {
+            List<LikePipeline.Like> shardLikes = byShard.get(i);
+            if(!shardLikes.isEmpty()) {
+                call(i, shard -> {
+                    shard.applyLikes(shardLikes);
+                    return null;
+                });
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Popular. A song or artist is counted entirely on its own shard, so the overall top k
+    // is always among the shards' top k. Ties go to what was created first, whichever shard it is on.
+
+    // An item of a shard's top, with its likes and its place in the shards' creation order.
+    private static class Ranked<T> {
+        final T item;
+        final long likes;
+        final long created;
+
+        Ranked(T item, long likes, long created){
+            this.item = item;
+            this.likes = likes;
+            this.created = created;
+        }
+    }
+
+    private static final Comparator<Ranked<?>> RANKING = (a, b) -> {
+        if(a.likes != b.likes)
+            return Long.compare(b.likes, a.likes);
+        return Long.compare(a.created, b.created);
+    };
+
+    private static <T> List<T> best(List<Ranked<T>> merged, int k){
+        merged.sort(RANKING);
+        List<T> best = new ArrayList<>();
+        for(Ranked<T> ranked : merged.subList(0, Math.min(Math.max(k, 0), merged.size())))
+            best.add(ranked.item);
+        return best;
+    }
+
+    @Override
+    public String mostPopularArtist(){
+        List<Artist> top = topArtists(1);
+        return top.isEmpty() ? "" : top.get(0).getName();
+    }
+
+    @Override
+    public List<String> mostPopularArtists(int k){
+        List<String> names = new ArrayList<>();
+        for(Artist artist : topArtists(k))
+            names.add(artist.getName());
+        return names;
+    }
+
+    @Override
+    public String mostPopularSong(){
+        List<Song> top = topSongs(1);
+        return top.isEmpty() ? "" : top.get(0).getTitle();
+    }
+
+    @Override
+    public List<String> mostPopularSongs(int k){
+        List<String> titles = new ArrayList<>();
+        for(Song song : topSongs(k))
+            titles.add(song.getTitle());
+        return titles;
+    }
+
+    private List<Artist> topArtists(int k){
+        List<Ranked<Artist>> merged = new ArrayList<>();
+        for(int i = 0; i < shardCount; i++) {
+            merged.addAll(call(i, shard -> {
+                List<Ranked<Artist>> top = new ArrayList<>();
+                for(Artist artist : shard.artistLeaderboard.top(k))
+                    top.add(new Ranked<>(artist, artist.getLikes(), shard.creationOrder(artist)));
+                return top;
+            }));
+        }
+        return best(merged,k);
+    }
+
+    private List<Song> topSongs(int k){
+        List<Ranked<Song>> merged = new ArrayList<>();
+        for(int i = 0; i < shardCount; i++) {
+            merged.addAll(call(i, shard -> {
+                List<Ranked<Song>> top = new ArrayList<>();
+                for(Song song : shard.songLeaderboard.top(k))
+                    top.add(new Ranked<>(song, song.getLikes(), shard.creationOrder(song)));
+                return top;
+            }));
+        }
+        return best(merged,k);
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Trending, merged the same way as popular.
+
+    @Override
+    public List<String> trendingSongs(String window, int k) throws Exception {
+        List<Ranked<Song>> merged = new ArrayList<>();
+        for(int i = 0; i < shardCount; i++) {
+            List<Ranked<Song>> top = call(i, shard -> {
+                List<TrendingWindow.Trend<Song>> trends = shard.trending.songs(window,k);
+                if(trends == null)
+                    return null;
+                List<Ranked<Song>> ranked = new ArrayList<>();
+                for(TrendingWindow.Trend<Song> trend : trends)
+                    ranked.add(new Ranked<>(trend.getItem(), trend.getLikes(), shard.creationOrder(trend.getItem())));
+                return ranked;
+            });
+            if(top == null)
+                throw new Exception("Invalid window");
+            merged.addAll(top);
+        }
+
+        List<String> titles = new ArrayList<>();
+        for(Song song : best(merged,k))
+            titles.add(song.getTitle());
+        return titles;
+    }
+
+    @Override
+    public List<String> trendingArtists(String window, int k) throws Exception {
+        List<Ranked<Artist>> merged = new ArrayList<>();
+        for(int i = 0; i < shardCount; i++) {
+            List<Ranked<Artist>> top = call(i, shard -> {
+                List<TrendingWindow.Trend<Artist>> trends = shard.trending.artists(window,k);
+                if(trends == null)
+                    return null;
+                List<Ranked<Artist>> ranked = new ArrayList<>();
+                for(TrendingWindow.Trend<Artist> trend : trends)
+                    ranked.add(new Ranked<>(trend.getItem(), trend.getLikes(), shard.creationOrder(trend.getItem())));
+                return ranked;
+            });
+            if(top == null)
+                throw new Exception("Invalid window");
+            merged.addAll(top);
+        }
+
+        List<String> names = new ArrayList<>();
+        for(Artist artist : best(merged,k))
+            names.add(artist.getName());
+        return names;
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Search. Each shard ranks its own titles; a title on several shards is merged into one hit.
+
+    @Override
+    public List<SearchIndex.Hit> search(String query, int limit) throws Exception {
+        Map<String, SearchIndex.Hit> hits = new HashMap<>();
+        for(int i = 0; i < shardCount; i++) {
+            for(SearchIndex.Hit hit : call(i, shard -> shard.search(query,limit)))
+                hits.merge(hit.getTitle(), hit, (a, b) -> new SearchIndex.Hit(a.getTitle(), a.getKinds() | b.getKinds(), a.getDistance()));
+        }
+
+        List<SearchIndex.Hit> merged = new ArrayList<>(hits.values());
+        merged.sort(SearchIndex.RANKING);
+        return new ArrayList<>(merged.subList(0, Math.min(pageSize(limit), merged.size())));
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Recommendations. Each shard only sees co-occurrence among its own songs, so songs of different
+    // artists' shards are never recommended for each other; the shards' best are merged by score.
+
+    @Override
+    List<Recommender.Recommendation> recommendations(User user, int k){
+        List<Recommender.Recommendation> merged = new ArrayList<>();
+        for(int i = 0; i < shardCount; i++)
+            merged.addAll(call(i, shard -> shard.recommendations(user,k)));
+        merged.sort(Comparator.comparingDouble(Recommender.Recommendation::getScore).reversed());
+        return new ArrayList<>(merged.subList(0, Math.min(Math.max(k, 0), merged.size())));
+    }
+}
@@ -1,40 +1,87 @@
 package com.driver;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class Song {
-    private String title;
-    private int length;
-    private int likes;
+    // Songs in a SpotifyRepository are views of a row of its ColumnarCatalogue and only hold the row's id;
+    // the fields below are used by songs made with the public constructors. A song's title and length
+    // don't change once it is made: the repository indexes songs by both.
+    private final ColumnarCatalogue catalogue;
+    private final int id;
 
-    public Song(){
+    private final String title;
+    private final int length;
+    private final AtomicInteger likes;
 
+    public Song(){
+        this((String) null,0);
     }
 
     public Song(String title, int length){
+        this.catalogue = null;
+        this.id = -1;
         this.title = title;
         this.length = length;
+        this.likes = new AtomicInteger();
     }
 
-    public String getTitle() {
-        return title;
+    Song(ColumnarCatalogue catalogue, int id){
+        this.catalogue = catalogue;
+        this.id = id;
+        this.title = null;
+        this.length = 0;
+        this.likes = null;
     }
 
-    public void setTitle(String title) {
-        this.title = title;
+    ColumnarCatalogue getCatalogue() {
+        return catalogue;
     }
 
-    public int getLength() {
-        return length;
+    // Dense, in creation order, for songs in a catalogue; -1 otherwise.
+    public int getId() {
+        return id;
     }
 
-    public void setLength(int length) {
-        this.length = length;
+    public String getTitle() {
+        return catalogue == null ? title : catalogue.songTitle(id);
+    }
+
+    public int getLength() {
+        return catalogue == null ? length : catalogue.songLength(id);
     }
 
     public int getLikes() {
-        return likes;
+        return catalogue == null ? likes.get() : catalogue.songLikes(id);
     }
 
     public void setLikes(int likes) {
-        this.likes = likes;
+        if(catalogue == null)
+            this.likes.set(likes);
+        else
+            catalogue.setSongLikes(id,likes);
+    }
+
+    public int incrementLikes() {
+        return addLikes(1);
+    }
+
+    public int addLikes(int count) {
+        return catalogue == null ? likes.addAndGet(count) : catalogue.addSongLikes(id,count);
+    }
+
+    // Views of the same catalogue row are the same song.
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(catalogue == null || !(o instanceof Song))
+            return false;
+        Song other = (Song) o;
+        return catalogue == other.catalogue && id == other.id;
+    }
+
+    @Override
+    public int hashCode() {
+        return catalogue == null ? System.identityHashCode(this) : id;
     }
 }
@@ -1,8 +1,16 @@
 package com.driver;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 @RestController
 @RequestMapping("spotify")
@@ -11,6 +19,10 @@ public class SpotifyController {
     //Autowire will not work in this case, no need to change this and add autowire
     SpotifyService spotifyService = new SpotifyService();
 
+    public SpotifyController(){
+        spotifyService.start();
+    }
+
     @PostMapping("/add-user")                                                                           // 1st API
     public String createUser(@RequestParam(name = "name") String name, String mobile){
         //create the user with given name and number
@@ -45,6 +57,37 @@ public class SpotifyController {
         return "Song added Success";
     }
 
+    // Bulk imports. The body is a JSON array of objects, or CSV with a header line when sent as text/csv.
+    // Rows are streamed and applied in batches; the response counts the rows and lists the ones that failed.
+
+    @PostMapping(value = "/add-users", consumes = {MediaType.APPLICATION_JSON_VALUE, "text/csv"})
+    public ImportResult createUsers(@RequestHeader(HttpHeaders.CONTENT_TYPE) String contentType, InputStream rows) throws IOException{
+        //Row fields: name, mobile
+
+        return spotifyService.createUsers(rows,contentType);
+    }
+
+    @PostMapping(value = "/add-artists", consumes = {MediaType.APPLICATION_JSON_VALUE, "text/csv"})
+    public ImportResult createArtists(@RequestHeader(HttpHeaders.CONTENT_TYPE) String contentType, InputStream rows) throws IOException{
+        //Row fields: name
+
+        return spotifyService.createArtists(rows,contentType);
+    }
+
+    @PostMapping(value = "/add-albums", consumes = {MediaType.APPLICATION_JSON_VALUE, "text/csv"})
+    public ImportResult createAlbums(@RequestHeader(HttpHeaders.CONTENT_TYPE) String contentType, InputStream rows) throws IOException{
+        //Row fields: title, artistName. Missing artists are created as in /add-album
+
+        return spotifyService.createAlbums(rows,contentType);
+    }
+
+    @PostMapping(value = "/add-songs", consumes = {MediaType.APPLICATION_JSON_VALUE, "text/csv"})
+    public ImportResult createSongs(@RequestHeader(HttpHeaders.CONTENT_TYPE) String contentType, InputStream rows) throws IOException{
+        //Row fields: title, albumName, length. A row whose album does not exist fails with "Album does not exist"
+
+        return spotifyService.createSongs(rows,contentType);
+    }
+
     @PostMapping("/add-playlist-on-length")                                                             // 5th API
     public String createPlaylistOnLength(String mobile, String title, int length) throws Exception{
 
@@ -56,6 +99,18 @@ public class SpotifyController {
         return "Playlist on length added Success";
     }
 
+    @PostMapping("/add-playlist-on-length-range")
+    public String createPlaylistOnLengthRange(String mobile, String title, int minLength, int maxLength) throws Exception{
+
+        //Create a playlist with given title and add all songs whose length is between minLength and maxLength (inclusive)
+        //The creator of the playlist will be the given user and will also be the only listener at the time of playlist creation
+        //If the user does not exist, throw "User does not exist" exception
+        //If minLength is greater than maxLength, throw "Invalid length range" exception
+
+        spotifyService.createPlaylistOnLengthRange(mobile,title,minLength,maxLength);
+        return "Playlist on length range added Success";
+    }
+
     @PostMapping("/add-playlist-on-name")                                                               // 6th API
     public String createPlaylistOnName(String mobile, String title, List<String> songTitles) throws Exception{
 
@@ -79,6 +134,16 @@ public class SpotifyController {
         return "Playlist added Success";
     }
 
+    @PutMapping("/find-playlist-by-id")
+    public String findPlaylistById(String mobile, int playlistId) throws Exception{
+        //Same as find-playlist, for the playlist with the given id
+        //If the user does not exist, throw "User does not exist" exception
+        //If the playlist does not exists, throw "Playlist does not exist" exception
+
+        spotifyService.findPlaylistById(mobile,playlistId);
+        return "Playlist added Success";
+    }
+
     @PutMapping("/like-song")                                                                           // 8th API
     public String likeSong(String mobile, String songTitle) throws Exception{
         //The user likes the given song. The corresponding artist of the song gets auto-liked
@@ -105,4 +170,133 @@ public class SpotifyController {
 
         return spotifyService.mostPopularSong();
     }
+
+    // The GETs from here down and the popular ones above carry an ETag of the repository's version (see VersionEtagInterceptor);
+    // a request with a matching If-None-Match gets 304 Not Modified without running the query.
+
+    // Listings, streamed as NDJSON a page at a time. Pass the X-Next-Cursor header of a response as cursor to get
+    // the next page; the last page has no X-Next-Cursor. limit is capped at 1000.
+
+    @GetMapping(value = "/playlist-songs", produces = NdjsonResponse.NDJSON)
+    public ResponseEntity<StreamingResponseBody> getPlaylistSongs(@RequestParam(name = "playlistId") int playlistId, Integer cursor,
+                                                                  @RequestParam(name = "limit", defaultValue = "100") int limit) throws Exception{
+        //Return the songs of the playlist with the given id, in playlist order
+        //If the playlist does not exists, throw "Playlist does not exist" exception
+
+        return NdjsonResponse.of(spotifyService.getPlaylistSongs(playlistId,cursor,limit), (json, song) -> {
+            json.writeStringField("title",song.getTitle());
+            json.writeNumberField("length",song.getLength());
+            json.writeNumberField("likes",song.getLikes());
+        });
+    }
+
+    @GetMapping(value = "/playlist-listeners", produces = NdjsonResponse.NDJSON)
+    public ResponseEntity<StreamingResponseBody> getPlaylistListeners(@RequestParam(name = "playlistId") int playlistId, Integer cursor,
+                                                                      @RequestParam(name = "limit", defaultValue = "100") int limit) throws Exception{
+        //Return the listeners of the playlist with the given id in join order, the creator first
+        //If the playlist does not exists, throw "Playlist does not exist" exception
+
+        return NdjsonResponse.of(spotifyService.getPlaylistListeners(playlistId,cursor,limit), (json, user) -> {
+            json.writeStringField("name",user.getName());
+            json.writeStringField("mobile",user.getMobile());
+        });
+    }
+
+    @GetMapping(value = "/album-songs", produces = NdjsonResponse.NDJSON)
+    public ResponseEntity<StreamingResponseBody> getAlbumSongs(@RequestParam(name = "albumTitle") String albumTitle, Integer cursor,
+                                                               @RequestParam(name = "limit", defaultValue = "100") int limit) throws Exception{
+        //Return the songs of the album with the given title, in the order they were added
+        //If the album does not exist, throw "Album does not exist" exception
+
+        return NdjsonResponse.of(spotifyService.getAlbumSongs(albumTitle,cursor,limit), (json, song) -> {
+            json.writeStringField("title",song.getTitle());
+            json.writeNumberField("length",song.getLength());
+            json.writeNumberField("likes",song.getLikes());
+        });
+    }
+
+    @GetMapping(value = "/artist-albums", produces = NdjsonResponse.NDJSON)
+    public ResponseEntity<StreamingResponseBody> getArtistAlbums(@RequestParam(name = "artistName") String artistName, Integer cursor,
+                                                                 @RequestParam(name = "limit", defaultValue = "100") int limit) throws Exception{
+        //Return the albums of the artist with the given name, in the order they were added
+        //If the artist does not exist, throw "Artist does not exist" exception
+
+        return NdjsonResponse.of(spotifyService.getArtistAlbums(artistName,cursor,limit), (json, album) -> {
+            json.writeStringField("title",album.getTitle());
+            if(album.getReleaseDate() != null)
+                json.writeNumberField("releaseDate",album.getReleaseDate().getTime());
+        });
+    }
+
+    @GetMapping("/popular-artists")
+    public List<String> mostPopularArtists(@RequestParam(name = "k", defaultValue = "10") int k){
+        //Return up to k artist names with the most likes, most liked first
+
+        return spotifyService.mostPopularArtists(k);
+    }
+
+    @GetMapping("/popular-songs")
+    public List<String> mostPopularSongs(@RequestParam(name = "k", defaultValue = "10") int k){
+        //Return up to k song titles with the most likes, most liked first
+
+        return spotifyService.mostPopularSongs(k);
+    }
+
+    @GetMapping("/search")
+    public List<SearchIndex.Hit> search(@RequestParam(name = "q") String query,
+                                        @RequestParam(name = "limit", defaultValue = "10") int limit) throws Exception{
+        //Return up to limit song, album and artist titles starting with the query, ignoring case, alphabetically,
+        //followed by titles starting with a close misspelling of it, closest first
+        //Each hit carries the title, which of song, album and artist have it, and its distance from the query
+
+        return spotifyService.search(query,limit);
+    }
+
+    @GetMapping("/recommendations")
+    public List<String> recommendSongs(@RequestParam(name = "mobile") String mobile,
+                                       @RequestParam(name = "k", defaultValue = "10") int k) throws Exception{
+        //Return up to k song titles liked together with, or in playlists with, the user's recent songs, best first
+        //Songs the user liked are left out
+        //If the user does not exist, throw "User does not exist" exception
+
+        return spotifyService.recommendSongs(mobile,k);
+    }
+
+    // Not covered by the version ETag, since the windows slide as time passes.
+    @GetMapping("/trending")
+    public Map<String, List<String>> trending(@RequestParam(name = "window", defaultValue = "1h") String window,
+                                              @RequestParam(name = "k", defaultValue = "10") int k) throws Exception{
+        //Return up to k songs and k artists most liked in the window (1h, 1d or 1w), most liked first
+        //If there is no such window, throw "Invalid window" exception
+
+        return spotifyService.trending(window,k);
+    }
+
+    // Snapshots of the whole dataset, to move it to another instance without replaying every call.
+
+    @GetMapping(value = "/export", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportSnapshot() throws Exception{
+        //Return every artist, album, song, user, playlist, listener and like as a binary snapshot
+
+        Path file = spotifyService.exportSnapshot();
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"spotify.bin\"")
+                .contentLength(Files.size(file))
+                .body(out -> {
+                    try {
+                        Files.copy(file,out);
+                    } finally {
+                        Files.deleteIfExists(file);
+                    }
+                });
+    }
+
+    @PostMapping(value = "/import", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public String importSnapshot(InputStream snapshot) throws Exception{
+        //Load a snapshot made by /export into this instance
+        //If anything has been created here already, throw "Repository is not empty" exception
+
+        spotifyService.importSnapshot(snapshot);
+        return "Import Success";
+    }
 }
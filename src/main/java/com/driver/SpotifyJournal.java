@@ -0,0 +1,646 @@
+package com.driver;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Write-ahead log of every successful mutation, plus periodic snapshots, so a restart recovers
+// the repository without re-importing through the REST API.
+//
+// Files in the data directory:
+//   snapshot.bin      state at the start of generation g (see SpotifySnapshot)
+//   wal-<g>.log       mutations applied since that snapshot
+// Recovery maps the snapshot, replays wal-<g>.log and carries on appending to it. A checkpoint
+// writes snapshot g+1 and starts wal-<g+1>.log, so a crash at any point leaves one consistent pair.
+//
+// Each log record is [int length][payload][int crc32]; a torn record at the tail is cut off on recovery.
+//
+// Mutations run concurrently under the repository's own locks. The repository logs each change from inside
+// the critical section that makes it, before anyone else can see the change, so the queue holds changes that
+// touch the same data in the order they were made, and changes after whatever they depend on: replay hands
+// out the same ids. Queuing only copies the record. One writer thread appends everything queued with a single
+// flush (and fsync), and a mutation returns once its records are written, so concurrent writers share the I/O.
+// Every logged change succeeded, so a record that fails on replay means the log doesn't match the snapshot,
+// and recovery stops rather than start with part of the data.
+public class SpotifyJournal implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpotifyJournal.class);
+
+    public interface Mutation<T, E extends Exception> {
+        T apply() throws E;
+    }
+
+    private interface Record {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    static final byte USER = 1;
+    static final byte ARTIST = 2;
+    static final byte ALBUM = 3;
+    static final byte SONG = 4;
+    static final byte PLAYLIST_ON_LENGTH = 5;
+    static final byte PLAYLIST_ON_LENGTH_RANGE = 6;
+    static final byte PLAYLIST_ON_NAME = 7;
+    static final byte LISTENER = 8;
+    static final byte LIKE = 9;
+    static final byte IMPORT_USERS = 10;
+    static final byte IMPORT_ARTISTS = 11;
+    static final byte IMPORT_ALBUMS = 12;
+    static final byte IMPORT_SONGS = 13;
+    static final byte LISTENER_BY_ID = 14;
+    static final byte LIKES = 15;
+    static final byte PLAYLIST_OF_SONGS = 16;
+    static final byte LIKE_BY_ID = 17;
+
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+
+    private final SpotifyRepository repository;
+    private final Path dir;
+    private final boolean fsync;
+
+    // Mutations share the read side; a checkpoint takes the write side so the snapshot and the log never overlap.
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
+    // Records queued by the repository and not yet taken by the writer, and how many were queued and written in all.
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final Condition recordsQueued = queueLock.newCondition();
+    private final Condition recordsWritten = queueLock.newCondition();
+    private List<byte[]> queue = new ArrayList<>();
+    private long queued;
+    private long written;
+    private IOException writeFailure;
+    private boolean closed;
+    private boolean stopped;
+
+    // Held by whoever writes to the log file: the writer thread, a checkpoint, or close.
+    private final ReentrantLock fileLock = new ReentrantLock();
+
+    private long generation;
+    private FileOutputStream logFile;
+    private DataOutputStream log;
+    private long recordsSinceCheckpoint;
+    private Thread writer;
+    private ScheduledExecutorService scheduler;
+    private final Thread shutdownHook = new Thread(this::close, "spotify-journal-shutdown");
+
+    private SpotifyJournal(SpotifyRepository repository, Path dir, boolean fsync){
+        this.repository = repository;
+        this.dir = dir;
+        this.fsync = fsync;
+    }
+
+    // Enabled with -Dspotify.data.dir=<dir>. Optional: -Dspotify.data.fsync=true to force every record
+    // to disk, -Dspotify.snapshot.interval.minutes=<n> (default 10, 0 disables periodic snapshots).
+    // Not available with -Dspotify.shards: the service refuses to start with both.
+    public static SpotifyJournal fromSystemProperties(AbstractSpotifyRepository repository){
+        String dataDir = System.getProperty("spotify.data.dir");
+        if(dataDir == null || dataDir.isEmpty())
+            return null;
+        // Snapshots read the maps of a single repository.
+        if(!(repository instanceof SpotifyRepository))
+            throw new IllegalStateException("spotify.data.dir can't be used with spotify.shards: "
+                    + "sharded repositories are not journalled, snapshotted, exported or imported");
+
+        try {
+            SpotifyJournal journal = open((SpotifyRepository) repository, Paths.get(dataDir), Boolean.getBoolean("spotify.data.fsync"));
+            journal.scheduleSnapshots(Long.getLong("spotify.snapshot.interval.minutes", 10));
+            return journal;
+        } catch(IOException e) {
+            throw new UncheckedIOException("Could not recover from " + dataDir, e);
+        }
+    }
+
+    // Loads the latest snapshot and log into an empty repository, opens the log for appending and
+    // starts logging the repository's changes.
+    public static SpotifyJournal open(SpotifyRepository repository, Path dir, boolean fsync) throws IOException {
+        Files.createDirectories(dir);
+        SpotifyJournal journal = new SpotifyJournal(repository, dir, fsync);
+
+        Path snapshot = dir.resolve(SNAPSHOT_FILE);
+        if(Files.exists(snapshot))
+            journal.generation = SpotifySnapshot.read(snapshot, repository);
+
+        Path logPath = journal.logPath(journal.generation);
+        if(Files.exists(logPath))
+            journal.recordsSinceCheckpoint = journal.replay(logPath);
+        // Records carry no time, so the replayed likes would all count as liked just now.
+        repository.trending = new Trending(System::currentTimeMillis);
+        journal.deleteOldLogs();
+        journal.openLog();
+
+        journal.writer = new Thread(journal::writeQueued, "spotify-journal-writer");
+        journal.writer.setDaemon(true);
+        journal.writer.start();
+        repository.journal = journal;
+
+        Runtime.getRuntime().addShutdownHook(journal.shutdownHook);
+        return journal;
+    }
+
+    // Runs a mutation, which logs its changes through the methods below, and returns once they are written.
+    // Reads don't come through here, and writers only wait for each other where the repository makes them.
+    public <T, E extends Exception> T apply(Mutation<T, E> mutation) throws E {
+        T result;
+        long logged;
+        checkpointLock.readLock().lock();
+        try {
+            result = mutation.apply();
+            logged = queued();
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        awaitWritten(logged);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Changes, logged by the repository holding the lock that orders them
+
+    void user(String name, String mobile){
+        enqueue(out -> {
+            out.writeByte(USER);
+            writeString(out, name);
+            writeString(out, mobile);
+        });
+    }
+
+    void artist(String name){
+        enqueue(out -> {
+            out.writeByte(ARTIST);
+            writeString(out, name);
+        });
+    }
+
+    void album(String title, String artistName, Date releaseDate){
+        enqueue(out -> {
+            out.writeByte(ALBUM);
+            writeString(out, title);
+            writeString(out, artistName);
+            out.writeLong(releaseDate.getTime());
+        });
+    }
+
+    void song(String title, String albumTitle, int length){
+        enqueue(out -> {
+            out.writeByte(SONG);
+            writeString(out, title);
+            writeString(out, albumTitle);
+            out.writeInt(length);
+        });
+    }
+
+    // A playlist made by a length rule is logged as the rule; any other as the ids of the songs it got.
+    void playlist(User creator, String title, List<Song> songs){
+        enqueue(out -> {
+            if(songs instanceof ColumnarCatalogue.LengthRule) {
+                out.writeByte(PLAYLIST_ON_LENGTH);
+                writeString(out, creator.getMobile());
+                writeString(out, title);
+                out.writeInt(((ColumnarCatalogue.LengthRule) songs).getLength());
+                return;
+            }
+            List<Song> snapshot = AppendOnlyList.snapshot(songs);
+            out.writeByte(PLAYLIST_OF_SONGS);
+            writeString(out, creator.getMobile());
+            writeString(out, title);
+            out.writeInt(snapshot.size());
+            for(Song song : snapshot)
+                out.writeInt(song.getId());
+        });
+    }
+
+    void listener(User user, Playlist playlist){
+        enqueue(out -> {
+            out.writeByte(LISTENER_BY_ID);
+            writeString(out, user.getMobile());
+            out.writeInt(playlist.getId());
+        });
+    }
+
+    void like(User user, Song song){
+        enqueue(out -> {
+            out.writeByte(LIKE_BY_ID);
+            writeString(out, user.getMobile());
+            out.writeInt(song.getId());
+        });
+    }
+
+    // Encodes the record on the caller's thread, so the writer never reads repository state, and queues it.
+    private void enqueue(Record record){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            record.write(new DataOutputStream(bytes));
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        queueLock.lock();
+        try {
+            queue.add(bytes.toByteArray());
+            queued++;
+            recordsQueued.signal();
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    private long queued(){
+        queueLock.lock();
+        try {
+            return queued;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    // Waits until the first count records queued are in the log, or the log can't be written.
+    private void awaitWritten(long count){
+        queueLock.lock();
+        try {
+            while(written < count && writeFailure == null && !stopped)
+                recordsWritten.awaitUninterruptibly();
+            if(written < count)
+                throw new UncheckedIOException("Could not append to the write-ahead log",
+                        writeFailure != null ? writeFailure : new IOException("The write-ahead log is closed"));
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    // The writer thread: takes everything queued, appends it, and flushes once for the whole group.
+    private void writeQueued(){
+        while(true) {
+            List<byte[]> group;
+            long upTo;
+            queueLock.lock();
+            try {
+                while(queue.isEmpty() && !closed)
+                    recordsQueued.awaitUninterruptibly();
+                if(queue.isEmpty()) {
+                    stopped = true;
+                    recordsWritten.signalAll();
+                    return;
+                }
+                group = queue;
+                queue = new ArrayList<>();
+                upTo = queued;
+            } finally {
+                queueLock.unlock();
+            }
+
+            IOException failure = null;
+            fileLock.lock();
+            try {
+                for(byte[] payload : group)
+                    append(payload);
+                log.flush();
+                if(fsync)
+                    logFile.getChannel().force(false);
+                recordsSinceCheckpoint += group.size();
+            } catch(IOException e) {
+                failure = e;
+            } finally {
+                fileLock.unlock();
+            }
+
+            queueLock.lock();
+            try {
+                if(failure == null) {
+                    written = upTo;
+                } else {
+                    // The log now ends in a torn record, so nothing more can go after it.
+                    writeFailure = failure;
+                    closed = true;
+                    stopped = true;
+                    LOG.error("Could not append to the write-ahead log {}; no further changes are logged", logPath(generation), failure);
+                }
+                recordsWritten.signalAll();
+                if(failure != null)
+                    return;
+            } finally {
+                queueLock.unlock();
+            }
+        }
+    }
+
+    // Called holding the file lock.
+    private void append(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        log.writeInt(payload.length);
+        log.write(payload);
+        log.writeInt((int) crc.getValue());
+    }
+
+    public void checkpoint() throws IOException {
+        checkpointLock.writeLock().lock();
+        try {
+            // No mutation is running, so every change made so far is queued.
+            awaitWritten(queued());
+            fileLock.lock();
+            try {
+                if(recordsSinceCheckpoint == 0)
+                    return;
+                writeCheckpoint();
+            } finally {
+                fileLock.unlock();
+            }
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    // Loads an exported snapshot into the empty repository and checkpoints straight away, since the log has none of it.
+    public void load(Path snapshot) throws IOException {
+        checkpointLock.writeLock().lock();
+        try {
+            awaitWritten(queued());
+            fileLock.lock();
+            try {
+                // The snapshot goes in through the repository's create paths, which mustn't log it again.
+                repository.journal = null;
+                try {
+                    SpotifySnapshot.read(snapshot, repository);
+                } finally {
+                    repository.journal = this;
+                }
+                writeCheckpoint();
+            } finally {
+                fileLock.unlock();
+            }
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    // Called holding the checkpoint lock's write side and the file lock.
+    private void writeCheckpoint() throws IOException {
+        log.close();
+        SpotifySnapshot.write(repository, generation + 1, dir.resolve(SNAPSHOT_FILE));
+        generation++;
+        recordsSinceCheckpoint = 0;
+        openLog();
+        deleteOldLogs();
+    }
+
+    private void scheduleSnapshots(long intervalMinutes){
+        if(intervalMinutes <= 0)
+            return;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "spotify-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                checkpoint();
+            } catch(IOException | RuntimeException e) {
+                // The log still has everything; the next attempt writes the snapshot again.
+                SpotifyMetrics.SNAPSHOT_FAILURES.increment();
+                LOG.error("Snapshot failed", e);
+            }
+        }, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    // Stops logging, writes whatever is queued and closes the log. Also run by the shutdown hook.
+    @Override
+    public void close(){
+        if(repository.journal == this)
+            repository.journal = null;
+        if(scheduler != null)
+            scheduler.shutdownNow();
+
+        queueLock.lock();
+        try {
+            closed = true;
+            recordsQueued.signal();
+        } finally {
+            queueLock.unlock();
+        }
+        if(writer != Thread.currentThread()) {
+            try {
+                writer.join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        fileLock.lock();
+        try {
+            if(log != null)
+                log.close();
+        } catch(IOException ignored) {
+        } finally {
+            fileLock.unlock();
+        }
+
+        if(Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch(IllegalStateException ignored) {
+                // Already shutting down.
+            }
+        }
+    }
+
+    private Path logPath(long generation){
+        return dir.resolve("wal-" + generation + ".log");
+    }
+
+    private void openLog() throws IOException {
+        logFile = new FileOutputStream(logPath(generation).toFile(), true);
+        log = new DataOutputStream(new BufferedOutputStream(logFile, 1 << 16));
+    }
+
+    private void deleteOldLogs() throws IOException {
+        try(DirectoryStream<Path> logs = Files.newDirectoryStream(dir, "wal-*.log")) {
+            for(Path path : logs) {
+                if(!path.equals(logPath(generation)))
+                    Files.delete(path);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Replay
+
+    private long replay(Path logPath) throws IOException {
+        long records = 0;
+        long goodLength = 0;
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath), 1 << 16))) {
+            while(true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    if(length < 0 || length > (64 << 20))
+                        break;
+                    payload = new byte[length];
+                    in.readFully(payload);
+
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    if(in.readInt() != (int) crc.getValue())
+                        break;
+                } catch(EOFException e) {
+                    break;
+                }
+
+                replayRecord(new DataInputStream(new ByteArrayInputStream(payload)), logPath, records);
+                goodLength += 8 + payload.length;
+                records++;
+            }
+        }
+
+        // Drop a record torn by a crash, so new records aren't appended after garbage.
+        if(goodLength < Files.size(logPath)) {
+            LOG.warn("Cut {} bytes of a torn record off the end of {}", Files.size(logPath) - goodLength, logPath);
+            try(RandomAccessFile file = new RandomAccessFile(logPath.toFile(), "rw")) {
+                file.setLength(goodLength);
+            }
+        }
+        return records;
+    }
+
+    // Types 6 to 13 and 15 are no longer written; they are read from logs of releases that logged requests
+    // rather than the changes they made.
+    private void replayRecord(DataInputStream in, Path logPath, long index) throws IOException {
+        byte type = in.readByte();
+        try {
+            switch(type) {
+                case USER:
+                    repository.createUser(readString(in), readString(in));
+                    break;
+                case ARTIST:
+                    repository.createArtist(readString(in));
+                    break;
+                case ALBUM:
+                    repository.createAlbum(readString(in), readString(in), new Date(in.readLong()));
+                    break;
+                case SONG:
+                    repository.createSong(readString(in), readString(in), in.readInt());
+                    break;
+                case PLAYLIST_ON_LENGTH:
+                    repository.createPlaylistOnLength(readString(in), readString(in), in.readInt());
+                    break;
+                case PLAYLIST_ON_LENGTH_RANGE:
+                    repository.createPlaylistOnLengthRange(readString(in), readString(in), in.readInt(), in.readInt());
+                    break;
+                case PLAYLIST_ON_NAME:
+                    repository.createPlaylistOnName(readString(in), readString(in), readStrings(in));
+                    break;
+                case PLAYLIST_OF_SONGS: {
+                    User creator = existingUser(readString(in));
+                    String title = readString(in);
+                    int count = in.readInt();
+                    ColumnarCatalogue.SongList songs = repository.catalogue.newSongList();
+                    for(int i = 0; i < count; i++)
+                        songs.addId(existingSong(in.readInt()).getId());
+                    repository.addPlaylist(creator, new Playlist(title), songs);
+                    break;
+                }
+                case LISTENER:
+                    repository.findPlaylist(readString(in), readString(in));
+                    break;
+                case LISTENER_BY_ID:
+                    repository.findPlaylistById(readString(in), in.readInt());
+                    break;
+                case LIKE:
+                    repository.likeSong(readString(in), readString(in));
+                    break;
+                case LIKE_BY_ID:
+                    repository.likeSong(existingUser(readString(in)), existingSong(in.readInt()));
+                    break;
+                case LIKES: {
+                    int count = in.readInt();
+                    List<LikePipeline.Like> likes = new ArrayList<>(count);
+                    for(int i = 0; i < count; i++) {
+                        User user = repository.checkIfUserExists(readString(in));
+                        Song song = repository.checkIfSongExists(readString(in));
+                        if(user != null && song != null)
+                            likes.add(new LikePipeline.Like(user, song));
+                    }
+                    repository.applyLikes(likes);
+                    break;
+                }
+                case IMPORT_USERS:
+                    repository.createUsers(readRows(in), new ImportResult());
+                    break;
+                case IMPORT_ARTISTS:
+                    repository.createArtists(readRows(in), new ImportResult());
+                    break;
+                case IMPORT_ALBUMS:
+                    repository.createAlbums(readRows(in), new ImportResult());
+                    break;
+                case IMPORT_SONGS:
+                    repository.createSongs(readRows(in), new ImportResult());
+                    break;
+                default:
+                    throw new IOException("Unknown log record type " + type);
+            }
+        } catch(IOException e) {
+            throw e;
+        } catch(Exception e) {
+            throw new IOException("Record " + index + " of " + logPath + " (type " + type + ") failed on replay", e);
+        }
+    }
+
+    private User existingUser(String mobile) throws Exception {
+        User user = repository.checkIfUserExists(mobile);
+        if(user == null)
+            throw new Exception("User does not exist");
+        return user;
+    }
+
+    private Song existingSong(int id) throws Exception {
+        if(id < 0 || id >= repository.catalogue.songCount())
+            throw new Exception("Song does not exist");
+        return repository.catalogue.song(id);
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Record encoding
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if(value != null)
+            out.writeUTF(value);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> values = new ArrayList<>(count);
+        for(int i = 0; i < count; i++)
+            values.add(readString(in));
+        return values;
+    }
+
+    static List<Map<String, String>> readRows(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Map<String, String>> rows = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            int fields = in.readInt();
+            Map<String, String> row = new HashMap<>();
+            for(int f = 0; f < fields; f++)
+                row.put(readString(in), readString(in));
+            rows.add(row);
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,99 @@
+package com.driver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+
+// Application meters, registered on Micrometer's global registry because the service and repository
+// are created with new rather than injected. Spring Boot adds its registries to the global one,
+// so everything here shows up under /actuator/metrics next to the http.server.requests timers.
+public class SpotifyMetrics {
+
+    // One in SAMPLE_RATE lookups records how many entries it examined.
+    private static final int SAMPLE_RATE = 16;
+
+    public static final Counter LIKES = Counter.builder("spotify.likes")
+            .description("Likes that were counted")
+            .register(Metrics.globalRegistry);
+
+    public static final Counter DUPLICATE_LIKES = Counter.builder("spotify.likes.duplicate")
+            .description("Likes ignored because the user already liked the song")
+            .register(Metrics.globalRegistry);
+
+    public static final Counter DROPPED_LIKES = Counter.builder("spotify.likes.dropped")
+            .description("Queued likes that could not be applied")
+            .register(Metrics.globalRegistry);
+
+    public static final Counter READ_CACHE_HITS = Counter.builder("spotify.read.cache")
+            .description("Reads answered by the versioned read cache")
+            .tag("result", "hit")
+            .register(Metrics.globalRegistry);
+
+    public static final Counter READ_CACHE_MISSES = Counter.builder("spotify.read.cache")
+            .description("Reads answered by the versioned read cache")
+            .tag("result", "miss")
+            .register(Metrics.globalRegistry);
+
+    public static final Counter SNAPSHOT_FAILURES = Counter.builder("spotify.snapshot.failures")
+            .description("Periodic snapshots that could not be written")
+            .register(Metrics.globalRegistry);
+
+    private static final ConcurrentHashMap<String, Counter> creates = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Counter> exceptions = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, DistributionSummary> examined = new ConcurrentHashMap<>();
+
+    public static void created(String entity){
+        creates.computeIfAbsent(entity, e -> Counter.builder("spotify.creates")
+                .description("Entities created")
+                .tag("entity", e)
+                .register(Metrics.globalRegistry)).increment();
+    }
+
+    // The repository only throws a handful of fixed messages, so the message is a safe tag.
+    public static void exception(Exception e){
+        String reason = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+        exceptions.computeIfAbsent(reason, r -> Counter.builder("spotify.exceptions")
+                .description("Requests rejected by the service")
+                .tag("reason", r)
+                .register(Metrics.globalRegistry)).increment();
+    }
+
+    // Sampled count of entries a lookup had to look at, to show scan cost growing before it hurts.
+    public static void examined(String lookup, int entries){
+        if(ThreadLocalRandom.current().nextInt(SAMPLE_RATE) != 0)
+            return;
+
+        examined.computeIfAbsent(lookup, l -> DistributionSummary.builder("spotify.repository.lookup.examined")
+                .description("Entries examined per lookup, sampled 1 in " + SAMPLE_RATE)
+                .tag("lookup", l)
+                .publishPercentiles(0.5, 0.99)
+                .register(Metrics.globalRegistry)).record(entries);
+    }
+
+    // Size gauges for the repository serving requests, one series per shard when it is sharded.
+    // Gauges hold the repository weakly.
+    public static void bind(AbstractSpotifyRepository repository){
+        if(repository instanceof ShardedSpotifyRepository) {
+            ShardedSpotifyRepository sharded = (ShardedSpotifyRepository) repository;
+            for(int i = 0; i < sharded.shardCount(); i++)
+                bind(sharded.shard(i), Tags.of("shard", Integer.toString(i)));
+            return;
+        }
+        bind((SpotifyRepository) repository, Tags.empty());
+    }
+
+    private static void bind(SpotifyRepository repository, Tags tags){
+        Metrics.gauge("spotify.users", tags, repository, r -> r.users.size());
+        Metrics.gauge("spotify.artists", tags, repository, r -> r.artists.size());
+        Metrics.gauge("spotify.albums", tags, repository, r -> r.albums.size());
+        Metrics.gauge("spotify.songs", tags, repository, r -> r.songs.size());
+        Metrics.gauge("spotify.playlists", tags, repository, r -> r.playlists.size());
+        Metrics.gauge("spotify.catalogue.titles", tags, repository, r -> r.catalogue.titleCount());
+        Metrics.gauge("spotify.catalogue.bytes", tags, repository, r -> r.catalogue.bytes());
+        Metrics.gauge("spotify.search.titles", tags, repository, r -> r.searchIndex.size());
+    }
+}
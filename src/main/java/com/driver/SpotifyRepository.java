@@ -1,55 +1,191 @@
 package com.driver;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.springframework.stereotype.Repository;
 
+// The repository's state, in memory: concurrent maps, append-only lists and the columnar catalogue.
+// The API itself is in AbstractSpotifyRepository.
 @Repository
-public class SpotifyRepository {
-    public HashMap<Artist, List<Album>> artistAlbumMap;
-    public HashMap<Album, List<Song>> albumSongMap;
-    public HashMap<Playlist, List<Song>> playlistSongMap;
-    public HashMap<Playlist, List<User>> playlistListenerMap;
-    public HashMap<User, Playlist> creatorPlaylistMap;
-    public HashMap<User, List<Playlist>> userPlaylistMap;
-    public HashMap<Song, List<User>> songLikeMap;
-
-    public List<User> users;
-    public List<Song> songs;
-    public List<Playlist> playlists;
-    public List<Album> albums;
-    public List<Artist> artists;
+public class SpotifyRepository extends AbstractSpotifyRepository {
+    // Tomcat worker threads share one repository, so every map is concurrent and every list is an
+    // AppendOnlyList: readers get a point-in-time version without a lock, writers serialize on the list.
+    public ConcurrentHashMap<Artist, List<Album>> artistAlbumMap;
+    public ConcurrentHashMap<Playlist, List<Song>> playlistSongMap;                // ColumnarCatalogue.SongList of song ids, or a LengthView
+    public ConcurrentHashMap<Playlist, List<User>> playlistListenerMap;            // in join order, creator first
+    public ConcurrentHashMap<User, List<Playlist>> creatorPlaylistMap;              // every playlist the user created
+    public ConcurrentHashMap<User, List<Playlist>> userPlaylistMap;
+
+    // Secondary indexes kept in sync on every create, so lookups don't walk the lists.
+    // When titles repeat, the first entity created keeps the slot, same as the old list scans.
+    public ConcurrentHashMap<String, User> userMobileMap;
+    public ConcurrentHashMap<String, Artist> artistNameMap;
+    public ConcurrentHashMap<String, Playlist> playlistTitleMap;
+
+    // O(1) membership for findPlaylist: listener user ids per playlist, and the creator of each playlist.
+    public ConcurrentHashMap<Playlist, LikeSet> playlistListenerIdMap;
+    public ConcurrentHashMap<Playlist, User> playlistCreatorMap;
+
+    // Albums and songs, with their titles, likes, owners and the title, album and length indexes,
+    // as primitive columns. Off the heap with -Dspotify.catalogue.offheap=true.
+    public ColumnarCatalogue catalogue;
+
+    // Kept in like order from likeSong, so the popular endpoints answer without a scan.
+    // Songs are ranked from their first like, ties going to the song created first.
+    public Leaderboard<Song> songLeaderboard;
+    public Leaderboard<Artist> artistLeaderboard;
+
+    // Likes over the last hour, day and week, for trending.
+    public Trending trending;
+
+    // Song, album and artist titles, for search.
+    public SearchIndex searchIndex;
+
+    // Songs liked together or sharing playlists, for recommendations.
+    public Recommender recommender;
+
+    public List<User> users;                                                       // position is the user's id
+    public List<Song> songs;                                                       // views of the catalogue, position is the id
+    public List<Playlist> playlists;                                               // position is the playlist's id
+    public List<Album> albums;                                                     // views of the catalogue, position is the id
+    public List<Artist> artists;                                                   // position is the artist's id
+
+    // Bumped after every write that changes what a read returns, so cached reads know when they are stale.
+    private final AtomicLong version = new AtomicLong();
+
+    // Set while a SpotifyJournal logs this repository. Each change is logged holding the lock that orders it,
+    // before anyone else can see it, so the log replays to the same ids.
+    volatile SpotifyJournal journal;
+
+    // User and playlist ids are position * idStride + idOffset. Both are 1 and 0 except in the shards of a
+    // ShardedSpotifyRepository, where this keeps ids unique across shards.
+    private final int idOffset;
+    private final int idStride;
+
+    // The shards of a ShardedSpotifyRepository share one sequence, drawn as each song and artist is created,
+    // so the router can merge their tops in creation order. Null otherwise, where ids are that order.
+    private final AtomicLong creations;
+    private final LongColumn songCreated;
+    private final LongColumn artistCreated;
+
+    // Striped locks serializing creates of the same mobile.
+    private static final int LOCK_STRIPES = 64;
+    private final ReentrantLock[] locks;
 
     public SpotifyRepository(){
+        this(0,1,null);
+    }
+
+    // Shard `shard` of `shardCount`, drawing creation order from the sequence the shards share.
+    SpotifyRepository(int shard, int shardCount, AtomicLong creations){
+        idOffset = shard;
+        idStride = shardCount;
+        this.creations = creations;
+        songCreated = creations == null ? null : new LongColumn(false, 0);
+        artistCreated = creations == null ? null : new LongColumn(false, 0);
+
         //To avoid hitting apis multiple times, initialize all the hashmaps here with some dummy data
-        artistAlbumMap = new HashMap<>();
-        albumSongMap = new HashMap<>();
-        playlistSongMap = new HashMap<>();
-        playlistListenerMap = new HashMap<>();
-        creatorPlaylistMap = new HashMap<>();
-        userPlaylistMap = new HashMap<>();
-        songLikeMap = new HashMap<>();
+        artistAlbumMap = new ConcurrentHashMap<>();
+        playlistSongMap = new ConcurrentHashMap<>();
+        playlistListenerMap = new ConcurrentHashMap<>();
+        creatorPlaylistMap = new ConcurrentHashMap<>();
+        userPlaylistMap = new ConcurrentHashMap<>();
+
+        userMobileMap = new ConcurrentHashMap<>();
+        artistNameMap = new ConcurrentHashMap<>();
+        playlistTitleMap = new ConcurrentHashMap<>();
+
+        playlistListenerIdMap = new ConcurrentHashMap<>();
+        playlistCreatorMap = new ConcurrentHashMap<>();
+
+        catalogue = new ColumnarCatalogue(Boolean.getBoolean("spotify.catalogue.offheap"));
+
+        songLeaderboard = new Leaderboard<>(Song::getLikes);
+        artistLeaderboard = new Leaderboard<>(Artist::getLikes);
+        trending = new Trending(System::currentTimeMillis);
+        searchIndex = new SearchIndex();
+        recommender = Recommender.fromSystemProperties();
+
+        users = newList();
+        songs = catalogue.songs();
+        playlists = newList();
+        albums = catalogue.albums();
+        artists = newList();
+
+        locks = new ReentrantLock[LOCK_STRIPES];
+        for(int i = 0; i < LOCK_STRIPES; i++)
+            locks[i] = new ReentrantLock();
+    }
+
+    public long getVersion(){
+        return version.get();
+    }
 
-        users = new ArrayList<>();
-        songs = new ArrayList<>();
-        playlists = new ArrayList<>();
-        albums = new ArrayList<>();
-        artists = new ArrayList<>();
+    // Where the song or artist comes in the order things were created, across the shards if this is one.
+    long creationOrder(Song song){
+        return creations == null ? song.getId() : songCreated.get(song.getId());
+    }
+
+    long creationOrder(Artist artist){
+        return creations == null ? artist.getId() : artistCreated.get(artist.getId());
+    }
+
+    // Nothing has been created yet, so a snapshot can be loaded.
+    public boolean isEmpty(){
+        return users.isEmpty() && artists.isEmpty() && catalogue.albumCount() == 0;
+    }
+
+    private ReentrantLock lockFor(Object key){
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return locks[h & (LOCK_STRIPES - 1)];
     }
 
     public User createUser(String name, String mobile)                                             // 1st API - Done
     {
         //create the user with given name and number
 
-        for(User st : users){
-            if(mobile.equals(st.getMobile()))
-                return st;
+        User existing = checkIfUserExists(mobile);
+        if(existing != null)
+            return existing;
+
+        // A user without a mobile can't be looked up, so there is nothing to dedup or index.
+        if(mobile == null)
+            return addUser(name,null);
+
+        // Creates of the same mobile serialize on its lock, so only the winner takes an id and ids stay dense.
+        ReentrantLock lock = lockFor(mobile);
+        lock.lock();
+        try {
+            existing = userMobileMap.get(mobile);
+            if(existing != null)
+                return existing;
+            return addUser(name,mobile);
+        } finally {
+            lock.unlock();
         }
+    }
 
+    private User addUser(String name, String mobile){
         User user = new User(name,mobile);
-        users.add(user);
-        userPlaylistMap.put(user,new ArrayList<>());
+        synchronized (users) {
+            SpotifyJournal journal = this.journal;
+            if(journal != null)
+                journal.user(name,mobile);
+            user.setId(users.size() * idStride + idOffset);
+            users.add(user);
+        }
 
+        // Secondary maps are filled before the user is published in the index,
+        // so a concurrent reader never finds a user without its playlist list.
+        userPlaylistMap.put(user,newList());
+        if(mobile != null)
+            userMobileMap.put(mobile,user);
+        SpotifyMetrics.created("user");
+        version.incrementAndGet();
         return user;
     }
 
@@ -58,45 +194,68 @@ public class SpotifyRepository {
     {
         //create the artist with given name
 
-        for(Artist st : artists){
-            if(name.equals(st.getName()))
-                return st;
+        Artist existing = checkIfArtistExists(name);
+        if(existing != null)
+            return existing;
+
+        // Artists are few, so creates serialize on the list, which hands out dense ids. The leaderboard
+        // entry is added in the same step, so artists enter it in id order and ties keep creation order.
+        Artist artist;
+        synchronized (artists) {
+            existing = artistNameMap.get(name);
+            if(existing != null)
+                return existing;
+
+            SpotifyJournal journal = this.journal;
+            if(journal != null)
+                journal.artist(name);
+            artist = new Artist(name);
+            artist.setId(artists.size());
+            if(creations != null) {
+                artistCreated.ensureCapacity(artist.getId());
+                artistCreated.set(artist.getId(), creations.getAndIncrement());
+            }
+            artists.add(artist);
+            artistAlbumMap.put(artist,newList());
+            artistLeaderboard.add(artist);
+            artistNameMap.put(name,artist);
         }
 
-        Artist artist = new Artist(name);
-        artists.add(artist);
-        artistAlbumMap.put(artist,new ArrayList<>());
-
+        searchIndex.add(name,SearchIndex.ARTIST);
+        SpotifyMetrics.created("artist");
+        version.incrementAndGet();
         return artist;
     }
 
   // -----------------------------------------------------------------------------------
     public Artist checkIfArtistExists(String artistName){
 
-        for(Artist artist : artists){
-
-            if(artistName.equals(artist.getName()))
-                return artist;
-        }
-        return  null;
+        if(artistName == null)
+            return null;
+        return artistNameMap.get(artistName);
     }
 
-    public Album createAlbum(String title, String artistName)                                      // 3rd API - Done
+    Album createAlbum(String title, String artistName, Date releaseDate)
     {
-        //If the artist does not exist, first create an artist with given name
-        //Create an album with given title and artist
-
         Artist artist = checkIfArtistExists(artistName);
 
         if(artist == null) {
             artist = createArtist(artistName);
         }
 
-        Album album = new Album(title);
-        albums.add(album);
+        // Logged holding the catalogue's monitor, which orders the album ids.
+        Album album;
+        synchronized (catalogue) {
+            SpotifyJournal journal = this.journal;
+            if(journal != null)
+                journal.album(title,artistName,releaseDate);
+            album = catalogue.album(catalogue.addAlbum(title,artist.getId(),releaseDate));
+        }
 
         artistAlbumMap.get(artist).add(album);
-        albumSongMap.put(album,new ArrayList<>());
+        searchIndex.add(title,SearchIndex.ALBUM);
+        SpotifyMetrics.created("album");
+        version.incrementAndGet();
 
         return album;
     }
@@ -104,30 +263,30 @@ public class SpotifyRepository {
     // ----------------------------------------------------------------------------------
     public Album checkIfAlbumExists(String albumName){
 
-        for(Album album : albums){
-
-            if(album.getTitle().equals(albumName))
-                return album;
-        }
-        return null;
+        int album = catalogue.firstAlbumWithTitle(albumName);
+        return album == ColumnarCatalogue.NONE ? null : catalogue.album(album);
     }
 
-    public Song createSong(String title, String albumName, int length) throws Exception            // 4th API - Done
+    // Adds a song to a known album; also used when restoring a snapshot, where album titles can repeat.
+    // The log names the album by title, which is the album createSong finds; a snapshot is restored unlogged.
+    Song addSong(String title, Album album, int length)
     {
-        //If the album does not exist in database, throw "Album does not exist" exception
-        //Create and add the song to respective album
-
-        Album album = checkIfAlbumExists(albumName);
-
-        if(album == null)
-            throw new Exception("Album does not exist");
-
         // Create Song
-        Song song = new Song(title,length);
-        songs.add(song);
-
-        albumSongMap.get(album).add(song);
-        songLikeMap.put(song,new ArrayList<>());
+        Song song;
+        synchronized (catalogue) {
+            SpotifyJournal journal = this.journal;
+            if(journal != null)
+                journal.song(title,album.getTitle(),length);
+            if(creations != null) {
+                int id = catalogue.songCount();
+                songCreated.ensureCapacity(id);
+                songCreated.set(id, creations.getAndIncrement());
+            }
+            song = catalogue.song(catalogue.addSong(title,album.getId(),length));
+        }
+        searchIndex.add(title,SearchIndex.SONG);
+        SpotifyMetrics.created("song");
+        version.incrementAndGet();
 
         return song;
     }
@@ -135,245 +294,422 @@ public class SpotifyRepository {
     // ---------------------------------------------------------------------------------
     public List<Song> getSongWithGivenLength(int length){
 
-        List<Song> listOfSong = new ArrayList<>();
-
-        for(Song song : songs){
+        ColumnarCatalogue.SongList listOfSong = catalogue.newSongList();
 
-            if(song.getLength() == length)
-                listOfSong.add(song);
-        }
+        catalogue.forEachSongWithLength(length,length,listOfSong::addId);
+        SpotifyMetrics.examined("songs-by-length",listOfSong.size());
         return listOfSong;
     }
 
-    public User checkIfUserExists(String mobile){
-
-        for(User user : users)
-        {
-            if(user.getMobile().equals(mobile))
-                return user;
-        }
-        return null;
-    }      // whether user exist or not
-
-    public Playlist createPlaylistOnLength(String mobile, String title, int length) throws Exception   // 5th API - Done
-    {
-        // Create a playlist with given title and add all songs having the given length in the database to that playlist
-        // The creator of the playlist will be the given user and will also be the only listener at the time of playlist creation
-        // If the user does not exist, throw "User does not exist" exception
-
-        User user = checkIfUserExists(mobile);
-        if(user == null)
-            throw new Exception("User does not exist");
-
-        Playlist playlist = new Playlist(title);
+    public List<Song> getSongsWithLengthBetween(int minLength, int maxLength){
 
-        //  Put in playlist-Song-Map , playlist-Listener-Map , creatorPlaylistMap , user-Playlist-Map  (HashMap)
+        ColumnarCatalogue.SongList listOfSong = catalogue.newSongList();
 
-        List<Song> listOfSongs = getSongWithGivenLength(length);
+        catalogue.forEachSongWithLength(minLength,maxLength,listOfSong::addId);
+        SpotifyMetrics.examined("songs-by-length-range",listOfSong.size());
+        return listOfSong;
+    }
 
-        playlistSongMap.put(playlist,listOfSongs);
+    // The user with the given id, or null if there is none.
+    public User getUserById(int id){
 
-        playlistListenerMap.put(playlist,new ArrayList<>());
-        playlistListenerMap.get(playlist).add(user);
+        int position = position(id);
+        if(position < 0 || position >= users.size())
+            return null;
+        return users.get(position);
+    }
 
-        creatorPlaylistMap.put(user,playlist);
+    // Position in users or playlists of an id handed out here, or -1 if it isn't one of ours.
+    private int position(int id){
+        if(id < idOffset || (id - idOffset) % idStride != 0)
+            return -1;
+        return (id - idOffset) / idStride;
+    }
 
-        userPlaylistMap.get(user).add(playlist);
+    public User checkIfUserExists(String mobile){
 
-        playlists.add(playlist);
-        return playlist;
-    }
+        if(mobile == null)
+            return null;
+        return userMobileMap.get(mobile);
+    }      // whether user exist or not
 
     // ---------------------------------------------------------------------------------
 
 
-    public void getSongsWithGivenTitle(String title,List<Song> songList){
+    // Appends every song with the title that isn't in seen yet. Cost is the number of matches,
+    // so building a playlist from many titles is linear in the songs it ends up holding.
+    public void getSongsWithGivenTitle(String title,List<Song> songList,Set<Song> seen){
 
-        for(Song song : songs){
+        int examined = catalogue.forEachSongWithTitle(title, id -> {
+            Song song = catalogue.song(id);
+            if(seen.add(song))
+                songList.add(song);
+        });
+        SpotifyMetrics.examined("songs-by-title",examined);
+    }
 
-            if(song.getTitle().equals(title))
-            {
-                if(!songList.contains(song))
-                    songList.add(song);
-            }
+    Playlist addPlaylist(User user, Playlist playlist, List<Song> listOfSongs){
+
+        // The playlist is not reachable by title or id until the maps are filled.
+        List<Song> songs = songIds(listOfSongs);
+        playlistSongMap.put(playlist,songs);
+
+        List<User> listeners = newList();
+        listeners.add(user);
+        playlistListenerMap.put(playlist,listeners);
+
+        LikeSet listenerIds = new LikeSet();
+        listenerIds.add(user.getId());
+        playlistListenerIdMap.put(playlist,listenerIds);
+
+        playlistCreatorMap.put(playlist,user);
+        recordPlaylistSongs(user,playlist);
+
+        // The id, the title's slot and the creator's lists are taken in one step, in the order of the log.
+        synchronized (playlists) {
+            SpotifyJournal journal = this.journal;
+            if(journal != null)
+                journal.playlist(user,playlist.getTitle(),songs);
+            playlist.setId(playlists.size() * idStride + idOffset);
+            creatorPlaylistMap.computeIfAbsent(user, u -> newList()).add(playlist);
+            userPlaylistMap.get(user).add(playlist);
+            playlists.add(playlist);
+            playlistTitleMap.putIfAbsent(playlist.getTitle(),playlist);
         }
+        SpotifyMetrics.created("playlist");
+        version.incrementAndGet();
+        return playlist;
     }
 
-    public Playlist createPlaylistOnName(String mobile, String title, List<String> songTitles) throws Exception  // 6th API - Done
-    {
-        //Create a playlist with given title and add all songs having the given titles in the database to that playlist
-        //The creator of the playlist will be the given user and will also be the only listener at the time of playlist creation
-        //If the user does not exist, throw "User does not exist" exception
+    // A list to gather the songs of a query into.
+    List<Song> newSongList(){
+        return catalogue.newSongList();
+    }
+
+    // Songs with the given length as a live view, for playlists made by that rule.
+    List<Song> songsWithLength(int length){
+        return catalogue.songsWithLength(length);
+    }
 
-        User user = checkIfUserExists(mobile);
+    // Playlists keep their songs as ids, whatever list they were built in, or as the rule that picks them.
+    // A shard's playlist can hold songs of other shards, which stay a list of songs.
+    private List<Song> songIds(List<Song> listOfSongs){
 
-        if(user == null)
-            throw new Exception("User does not exist");
+        if(listOfSongs instanceof ColumnarCatalogue.SongList || listOfSongs instanceof ColumnarCatalogue.LengthRule)
+            return listOfSongs;
 
-        Playlist playlist = new Playlist(title);
-        List<Song> listOfSongs = new ArrayList<>();
+        synchronized (listOfSongs) {
+            for(Song song : listOfSongs) {
+                if(!catalogue.contains(song))
+                    return listOfSongs;
+            }
 
-        for(String st : songTitles){
-            getSongsWithGivenTitle(st,listOfSongs);
+            ColumnarCatalogue.SongList ids = catalogue.newSongList();
+            ids.addAll(listOfSongs);
+            return ids;
         }
+    }
 
-        //  Put in playlist-Song-Map , playlist-Listener-Map , creatorPlaylistMap , user-Playlist-Map  (HashMap)
+    // -------------------------------------------------------------------------------------
+    public Playlist checkIfPlaylistExists(String playlistTitle){
 
-        playlistSongMap.put(playlist,listOfSongs);
+        if(playlistTitle == null)
+            return null;
+        return playlistTitleMap.get(playlistTitle);
+    }
 
-        playlistListenerMap.put(playlist,new ArrayList<>());
-        playlistListenerMap.get(playlist).add(user);
+    public Playlist getPlaylistById(int id){
 
-        creatorPlaylistMap.put(user,playlist);
+        int position = position(id);
+        if(position < 0 || position >= playlists.size())
+            return null;
+        return playlists.get(position);
+    }
 
-        userPlaylistMap.get(user).add(playlist);
+    public boolean checkIfUserIsACreator(User user , Playlist playlist) {
 
-        playlists.add(playlist);
-        return playlist;
+        return playlistCreatorMap.get(playlist) == user;
     }
 
-    // -------------------------------------------------------------------------------------
-    public Playlist checkIfPlaylistExists(String playlistTitle){
-
-        for(Playlist playlist : playlists){
+    public boolean checkIfUserIsAListener(User user , Playlist playlist)
+    {
+        return playlistListenerIdMap.get(playlist).contains(user.getId());
+    }
 
-            if(playlist.getTitle().equals(playlistTitle))
-                return playlist;
+    // Adds the user as a listener unless they already are one. The id set makes the check and the add
+    // one atomic O(1) step, so a playlist with a million listeners costs the same to join as an empty one.
+    boolean addListener(User user, Playlist playlist)
+    {
+        if(checkIfUserIsACreator(user,playlist))
+            return false;
+
+        // Joins of one playlist serialize on its listener list, so the list and the log agree on their order.
+        List<User> listeners = playlistListenerMap.get(playlist);
+        synchronized (listeners) {
+            if(!playlistListenerIdMap.get(playlist).add(user.getId()))
+                return false;
+            SpotifyJournal journal = this.journal;
+            if(journal != null)
+                journal.listener(user,playlist);
+            listeners.add(user);
         }
-        return null;
+        // The user can belong to another shard, so may not have a list here yet.
+        userPlaylistMap.computeIfAbsent(user, u -> newList()).add(playlist);
+        recordPlaylistSongs(user,playlist);
+        version.incrementAndGet();
+        return true;
     }
 
-    public boolean checkIfUserIsACreator(User user , Playlist playlist) {
-        if(creatorPlaylistMap.containsKey(user))
-            return creatorPlaylistMap.get(user).equals(playlist);
+    // A user's playlist counts once for recommendations, by its first few songs; see Recommender.recordPlaylist.
+    // Songs of other shards are left to theirs.
+    private void recordPlaylistSongs(User user, Playlist playlist){
+        List<Song> playlistSongs = AppendOnlyList.snapshot(playlistSongMap.get(playlist));
+        int[] songs = new int[Math.min(playlistSongs.size(), Recommender.PLAYLIST_SONGS)];
+        int size = 0;
+        for(int i = 0; i < songs.length; i++) {
+            Song song = playlistSongs.get(i);
+            if(catalogue.contains(song))
+                songs[size++] = song.getId();
+        }
+        recommender.recordPlaylist(user.getId(),Arrays.copyOf(songs,size));
+    }
 
-        return false;
+    // ---------------------------------------------------------------------------------------
+    // Paged listings. A cursor is where the next page starts; pages never hold more than MAX_PAGE_SIZE items,
+    // so a listing costs the same per request whether the list behind it has ten entries or ten million.
+
+    // Lists only ever grow, so a position stays a valid cursor. A page is read from one version of the list,
+    // without holding up the writers adding to it.
+    private static <T> Page<T> page(List<T> list, Integer cursor, int limit) throws Exception {
+        int from = cursor == null ? 0 : cursor;
+        if(from < 0)
+            throw new Exception("Invalid cursor");
+        int size = pageSize(limit);
+
+        List<T> version = AppendOnlyList.snapshot(list);
+        int total = version.size();
+        int to = (int) Math.min(total, (long) from + size);
+        List<T> items = new ArrayList<>(size);
+        for(int i = from; i < to; i++)
+            items.add(version.get(i));
+        return new Page<>(items, to < total ? to : null);
     }
 
-    public boolean checkIfUserIsAListener(User user , Playlist playlist)
+    public Page<Song> getPlaylistSongs(int playlistId, Integer cursor, int limit) throws Exception
     {
-        return playlistListenerMap.get(playlist).contains(user);
+        // Return the songs of the playlist with the given id, in playlist order
+        // If the playlist does not exist, throw "Playlist does not exist" exception
+
+        Playlist playlist = getPlaylistById(playlistId);
+
+        if(playlist == null)
+            throw new Exception("Playlist does not exist");
+
+        return page(playlistSongMap.get(playlist),cursor,limit);
     }
 
-    public Playlist findPlaylist(String mobile, String playlistTitle) throws Exception             // 7th API - done
+    public Page<User> getPlaylistListeners(int playlistId, Integer cursor, int limit) throws Exception
     {
-        // 1. Find the playlist with given title and add user as listener of that playlist and update user accordingly
-        // 2. If the user is creator or already a listener, do nothing
-        // 3. If the user does not exist, throw "User does not exist" exception
-        // 4. If the playlist does not exist, throw "Playlist does not exist" exception
-        // 5. Return the playlist after updating.
+        // Return the listeners of the playlist with the given id in join order, the creator first
+        // If the playlist does not exist, throw "Playlist does not exist" exception
 
-        Playlist playlist = null;
-
-        playlist = checkIfPlaylistExists(playlistTitle);
+        Playlist playlist = getPlaylistById(playlistId);
 
         if(playlist == null)
             throw new Exception("Playlist does not exist");
 
-        User user = null;
-        user = checkIfUserExists(mobile);
+        return page(playlistListenerMap.get(playlist),cursor,limit);
+    }
 
-        if(user == null)
-            throw new Exception("User does not exist");
+    public Page<Album> getArtistAlbums(String artistName, Integer cursor, int limit) throws Exception
+    {
+        // Return the albums of the artist with the given name, in creation order
+        // If the artist does not exist, throw "Artist does not exist" exception
 
-        boolean isUserAListenerOrACreator = checkIfUserIsACreator(user,playlist) ||
-                checkIfUserIsAListener(user,playlist);
+        Artist artist = checkIfArtistExists(artistName);
 
-        if(isUserAListenerOrACreator)
-            return playlist;
+        if(artist == null)
+            throw new Exception("Artist does not exist");
 
-        playlistListenerMap.get(playlist).add(user);
+        return page(artistAlbumMap.get(artist),cursor,limit);
+    }
 
-        userPlaylistMap.get(user).add(playlist);
+    public Page<Song> getAlbumSongs(String albumTitle, Integer cursor, int limit) throws Exception
+    {
+        // Return the songs of the album with the given title, in creation order
+        // If the album does not exist, throw "Album does not exist" exception
 
-        return playlist;
+        Album album = checkIfAlbumExists(albumTitle);
+
+        if(album == null)
+            throw new Exception("Album does not exist");
+
+        // An album's songs are a chain of ids in the catalogue, so here the cursor is the id of the next song.
+        int song;
+        if(cursor == null)
+            song = catalogue.firstSongOfAlbum(album.getId());
+        else if(cursor >= 0 && cursor < catalogue.songCount() && catalogue.songAlbum(cursor) == album.getId())
+            song = cursor;
+        else
+            throw new Exception("Invalid cursor");
+
+        int size = pageSize(limit);
+        List<Song> items = new ArrayList<>(size);
+        while(song != ColumnarCatalogue.NONE && items.size() < size) {
+            items.add(catalogue.song(song));
+            song = catalogue.nextSongOfAlbum(song);
+        }
+        return new Page<>(items, song == ColumnarCatalogue.NONE ? null : song);
     }
 
     // ---------------------------------------------------------------------------------------
 
     public Song checkIfSongExists(String songTitle){
 
-        for(Song song : songs)
-        {
-            if(song.getTitle().equals(songTitle))
-                return song;
-        }
-        return null;
+        int song = catalogue.firstSongWithTitle(songTitle);
+        return song == ColumnarCatalogue.NONE ? null : catalogue.song(song);
     }
 
     public Album getAlbumOfTheSong(Song song){
 
-        for(Album album : albumSongMap.keySet())
-        {
-            if(albumSongMap.get(album).contains(song))
-                return album;
-        }
-        return null;
+        return catalogue.album(catalogue.songAlbum(song.getId()));
     }
 
     public Artist getArtistOfTheAlbum(Album album){
 
-        for(Artist artist : artistAlbumMap.keySet())
-        {
-            if(artistAlbumMap.get(artist).contains(album))
-                return artist;
-        }
-        return null;
+        return artists.get(catalogue.albumArtist(album.getId()));
     }
 
+    // The ids of the users who liked the song, or null if nobody has.
+    public LikeSet getLikesOfTheSong(Song song){
 
-    public Song likeSong(String mobile, String songTitle) throws Exception                         // 8th API - done
-    {
-        // 1. The user likes the given song. The corresponding artist of the song gets auto-liked
-        // 2. A song can be liked by a user only once. If a user tried to like a song multiple times, do nothing
-        // 3. However, an artist can indirectly have multiple likes from a user, if the user has liked multiple songs of that artist.
-        // 4. If the user does not exist, throw "User does not exist" exception
-        // 5. If the song does not exist, throw "Song does not exist" exception
-        // 6. Return the song after updating
+        return catalogue.likersIfPresent(song.getId());
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // The baseline's albumSongMap, songLikeMap and creatorPlaylistMap, for code written against them. The
+    // catalogue and creatorPlaylistMap's lists hold this now, so these are copies built on each call, at
+    // the cost of a pass over the songs or creators; nothing on a request path uses them.
+
+    public Map<Album, List<Song>> getAlbumSongMap(){
+
+        Map<Album, List<Song>> albumSongMap = new HashMap<>();
+        for(Album album : AppendOnlyList.snapshot(albums)) {
+            List<Song> albumSongs = new ArrayList<>();
+            catalogue.forEachSongOfAlbum(album.getId(), song -> albumSongs.add(catalogue.song(song)));
+            albumSongMap.put(album, albumSongs);
+        }
+        return albumSongMap;
+    }
 
-        User user = null;
-        user = checkIfUserExists(mobile);
+    // Songs nobody liked are left out, as the baseline only added a song on its first like.
+    // Likers from other shards of a ShardedSpotifyRepository are left out too.
+    public Map<Song, List<User>> getSongLikeMap(){
+
+        Map<Song, List<User>> songLikeMap = new HashMap<>();
+        for(Song song : AppendOnlyList.snapshot(songs)) {
+            LikeSet likers = catalogue.likersIfPresent(song.getId());
+            if(likers == null || likers.size() == 0)
+                continue;
+
+            List<User> likedBy = new ArrayList<>();
+            likers.forEach(id -> {
+                User user = getUserById(id);
+                if(user != null)
+                    likedBy.add(user);
+            });
+            songLikeMap.put(song, likedBy);
+        }
+        return songLikeMap;
+    }
 
-        if(user == null)
-            throw new Exception("User does not exist");
+    // Each creator's latest playlist, as the baseline kept only that.
+    public Map<User, Playlist> getCreatorPlaylistMap(){
 
-        // 6.
-        Song song = null;
-        song = checkIfSongExists(songTitle);
+        Map<User, Playlist> latest = new HashMap<>();
+        creatorPlaylistMap.forEach((user, created) -> {
+            List<Playlist> snapshot = AppendOnlyList.snapshot(created);
+            if(!snapshot.isEmpty())
+                latest.put(user, snapshot.get(snapshot.size() - 1));
+        });
+        return latest;
+    }
 
-        if(song == null)
-            throw new Exception("Song does not exist");
 
+    // The like itself, for a user and song already looked up. The user can belong to another shard.
+    Song likeSong(User user, Song song)
+    {
         Album album = getAlbumOfTheSong(song);
         Artist artist = getArtistOfTheAlbum(album);
 
-        int songLikes = 0;
-        int artistLikes = 0;
+        // The like set dedups atomically in O(1); the counters are atomic too,
+        // so likes on different songs of the same artist never wait on each other.
+        boolean liked = catalogue.likers(song.getId()).add(user.getId());
 
-        if(songLikeMap.containsKey(song))
+        if(liked)
         {
-            if(!songLikeMap.get(song).contains(user))
-            {
-                songLikeMap.get(song).add(user);
-                songLikes = song.getLikes() + 1;
-                artistLikes = artist.getLikes() + 1;
-                song.setLikes(songLikes);
-                artist.setLikes(artistLikes);
-            }
+            SpotifyJournal journal = this.journal;
+            if(journal != null)
+                journal.like(user,song);
+            song.incrementLikes();
+            artist.incrementLikes();
+            songLeaderboard.refresh(song,song.getId());
+            artistLeaderboard.refresh(artist);
+            recommender.record(user.getId(),song.getId());
+            trending.recordSong(song,1);
+            trending.recordArtist(artist,1);
+            SpotifyMetrics.LIKES.increment();
+            version.incrementAndGet();
         }
-
         else
+            SpotifyMetrics.DUPLICATE_LIKES.increment();
+
+        return song;
+    }
+
+    // Applies a batch of already validated likes in one pass. Repeats inside the batch and likes already
+    // counted are dropped by the like sets, and the increments are folded per song and per artist,
+    // so each counter and leaderboard entry is touched once per batch instead of once per like.
+    public void applyLikes(List<LikePipeline.Like> likes)
+    {
+        Map<Song, Integer> songDeltas = new HashMap<>();
+        Map<Artist, Integer> artistDeltas = new IdentityHashMap<>();
+
+        for(LikePipeline.Like like : likes)
         {
-            songLikeMap.put(song,new ArrayList<>());
-            songLikeMap.get(song).add(user);
+            Song song = like.getSong();
+            if(!catalogue.likers(song.getId()).add(like.getUser().getId()))
+            {
+                SpotifyMetrics.DUPLICATE_LIKES.increment();
+                continue;
+            }
+            SpotifyJournal journal = this.journal;
+            if(journal != null)
+                journal.like(like.getUser(),song);
+            recommender.record(like.getUser().getId(),song.getId());
 
-            songLikes = song.getLikes() + 1;
-            artistLikes = artist.getLikes() + 1;
-            song.setLikes(songLikes);
-            artist.setLikes(artistLikes);
+            songDeltas.merge(song,1,Integer::sum);
+            artistDeltas.merge(getArtistOfTheAlbum(getAlbumOfTheSong(song)),1,Integer::sum);
         }
 
-        return song;
+        int counted = 0;
+        for(Map.Entry<Song, Integer> delta : songDeltas.entrySet())
+        {
+            delta.getKey().addLikes(delta.getValue());
+            trending.recordSong(delta.getKey(),delta.getValue());
+            counted += delta.getValue();
+        }
+        for(Map.Entry<Artist, Integer> delta : artistDeltas.entrySet())
+        {
+            delta.getKey().addLikes(delta.getValue());
+            trending.recordArtist(delta.getKey(),delta.getValue());
+        }
+        // One new version of each published top for the whole batch.
+        songLeaderboard.refreshAll(songDeltas.keySet(),Song::getId);
+        artistLeaderboard.refreshAll(artistDeltas.keySet(),Artist::getId);
+        SpotifyMetrics.LIKES.increment(counted);
+        if(counted > 0)
+            version.incrementAndGet();
     }
 
     // -----------------------------------------------------------------------------------------
@@ -382,17 +718,18 @@ public class SpotifyRepository {
     {
         //Return the artist name with maximum likes
 
-        String ans = "";
-        int max = 0;
+        Artist artist = artistLeaderboard.top();
+        return artist == null ? "" : artist.getName();
+    }
 
-        for(Artist st : artists)
-        {
-            if(max < st.getLikes()){
-                max = st.getLikes();
-                ans = st.getName();
-            }
-        }
-        return ans;
+    public List<String> mostPopularArtists(int k)
+    {
+        //Return up to k artist names with the most likes, most liked first
+
+        List<String> names = new ArrayList<>();
+        for(Artist artist : artistLeaderboard.top(k))
+            names.add(artist.getName());
+        return names;
     }
 
     // ------------------------------------------------------------------------------------------
@@ -401,16 +738,69 @@ public class SpotifyRepository {
     {
         //return the song title with maximum likes
 
-        String ans = "";
-        int max = 0;
+        Song song = songLeaderboard.top();
+        return song == null ? "" : song.getTitle();
+    }
 
-        for(Song st : songs)
-        {
-            if(max < st.getLikes()){
-                max = st.getLikes();
-                ans = st.getTitle();
-            }
-        }
-        return ans;
+    public List<String> mostPopularSongs(int k)
+    {
+        //Return up to k song titles with the most likes, most liked first
+
+        List<String> titles = new ArrayList<>();
+        for(Song song : songLeaderboard.top(k))
+            titles.add(song.getTitle());
+        return titles;
+    }
+
+    // ------------------------------------------------------------------------------------------
+
+    public List<String> trendingSongs(String window, int k) throws Exception
+    {
+        //Return up to k song titles most liked in the window (1h, 1d or 1w), most liked first
+        //If there is no such window, throw "Invalid window" exception
+
+        List<TrendingWindow.Trend<Song>> top = trending.songs(window,k);
+        if(top == null)
+            throw new Exception("Invalid window");
+
+        List<String> titles = new ArrayList<>();
+        for(TrendingWindow.Trend<Song> trend : top)
+            titles.add(trend.getItem().getTitle());
+        return titles;
+    }
+
+    public List<String> trendingArtists(String window, int k) throws Exception
+    {
+        //Return up to k artist names most liked in the window (1h, 1d or 1w), most liked first
+        //If there is no such window, throw "Invalid window" exception
+
+        List<TrendingWindow.Trend<Artist>> top = trending.artists(window,k);
+        if(top == null)
+            throw new Exception("Invalid window");
+
+        List<String> names = new ArrayList<>();
+        for(TrendingWindow.Trend<Artist> trend : top)
+            names.add(trend.getItem().getName());
+        return names;
+    }
+
+    // ------------------------------------------------------------------------------------------
+
+    public List<SearchIndex.Hit> search(String query, int limit) throws Exception
+    {
+        //Return up to limit song, album and artist titles starting with the query, ignoring case,
+        //followed by titles that start with a close misspelling of it
+        //If limit is not positive, throw "Invalid limit" exception
+
+        return searchIndex.search(query == null ? "" : query,pageSize(limit));
+    }
+
+    // ------------------------------------------------------------------------------------------
+
+    List<Recommender.Recommendation> recommendations(User user, int k){
+        return recommender.recommend(user.getId(),k,song -> {
+            LikeSet likers = catalogue.likersIfPresent(song);
+            return likers != null && likers.contains(user.getId());
+        },catalogue::song);
     }
 }
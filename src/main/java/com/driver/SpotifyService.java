@@ -1,6 +1,12 @@
 package com.driver;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.function.BiConsumer;
 
 import org.springframework.stereotype.Service;
 
@@ -8,55 +14,258 @@ import org.springframework.stereotype.Service;
 public class SpotifyService {
 
     //Auto-wire will not work in this case, no need to change this and add autowire
-    SpotifyRepository spotifyRepository = new SpotifyRepository();
+    // A single repository, or one partitioned over -Dspotify.shards of them.
+    AbstractSpotifyRepository spotifyRepository = AbstractSpotifyRepository.fromSystemProperties();
+
+    // Null unless -Dspotify.data.dir is set. Recovers the repository on start and logs every mutation after that.
+    SpotifyJournal journal;
+
+    // Null unless -Dspotify.likes.async=true, in which case likes are queued and applied in batches.
+    LikePipeline likePipeline;
+
+    // Read endpoints answer from here until the repository's version moves.
+    ReadCache readCache = new ReadCache(spotifyRepository::getVersion);
+
+    // Called by SpotifyController for the service behind the endpoints. Spring also creates a SpotifyService bean
+    // of its own, which must not open the journal or register gauges, so none of this happens in the constructor.
+    public void start(){
+        journal = SpotifyJournal.fromSystemProperties(spotifyRepository);
+        likePipeline = LikePipeline.fromSystemProperties(this::applyLikes);
+        SpotifyMetrics.bind(spotifyRepository);
+    }
+
+    // Every mutation goes through here, which also counts the ones the repository rejects.
+    // The repository logs what a mutation changed; see SpotifyJournal.
+    private <T, E extends Exception> T journalled(SpotifyJournal.Mutation<T, E> mutation) throws E {
+        try {
+            if(journal == null)
+                return mutation.apply();
+            return journal.apply(mutation);
+        } catch(Exception e) {
+            SpotifyMetrics.exception(e);
+            throw e;
+        }
+    }
 
     public User createUser(String name, String mobile){
 
-        return spotifyRepository.createUser(name,mobile);
+        return journalled(() -> spotifyRepository.createUser(name,mobile));
     }
 
     public Artist createArtist(String name) {
 
-        return spotifyRepository.createArtist(name);
+        return journalled(() -> spotifyRepository.createArtist(name));
     }
 
     public Album createAlbum(String title, String artistName) {
 
-        return spotifyRepository.createAlbum(title,artistName);
+        return journalled(() -> spotifyRepository.createAlbum(title,artistName));
     }
 
     public Song createSong(String title, String albumName, int length) throws Exception {
 
-        return spotifyRepository.createSong(title,albumName,length);
+        return journalled(() -> spotifyRepository.createSong(title,albumName,length));
+    }
+
+    // Each imported batch is one mutation, which returns once every row it created is logged.
+    private BiConsumer<List<Map<String, String>>, ImportResult> journalledBatches(BiConsumer<List<Map<String, String>>, ImportResult> applyBatch) {
+
+        return (rows, result) -> journalled(() -> {
+            applyBatch.accept(rows,result);
+            return null;
+        });
+    }
+
+    public ImportResult createUsers(InputStream rows, String contentType) throws IOException {
+
+        return new CatalogueImporter(journalledBatches(spotifyRepository::createUsers)).importStream(rows,contentType);
+    }
+
+    public ImportResult createArtists(InputStream rows, String contentType) throws IOException {
+
+        return new CatalogueImporter(journalledBatches(spotifyRepository::createArtists)).importStream(rows,contentType);
+    }
+
+    public ImportResult createAlbums(InputStream rows, String contentType) throws IOException {
+
+        return new CatalogueImporter(journalledBatches(spotifyRepository::createAlbums)).importStream(rows,contentType);
+    }
+
+    public ImportResult createSongs(InputStream rows, String contentType) throws IOException {
+
+        return new CatalogueImporter(journalledBatches(spotifyRepository::createSongs)).importStream(rows,contentType);
     }
 
     public Playlist createPlaylistOnLength(String mobile, String title, int length) throws Exception {
 
-        return spotifyRepository.createPlaylistOnLength(mobile,title,length);
+        return journalled(() -> spotifyRepository.createPlaylistOnLength(mobile,title,length));
+    }
+
+    public Playlist createPlaylistOnLengthRange(String mobile, String title, int minLength, int maxLength) throws Exception {
+
+        return journalled(() -> spotifyRepository.createPlaylistOnLengthRange(mobile,title,minLength,maxLength));
     }
 
     public Playlist createPlaylistOnName(String mobile, String title, List<String> songTitles) throws Exception {
 
-        return spotifyRepository.createPlaylistOnName(mobile,title,songTitles);
+        return journalled(() -> spotifyRepository.createPlaylistOnName(mobile,title,songTitles));
     }
 
     public Playlist findPlaylist(String mobile, String playlistTitle) throws Exception {
 
-        return spotifyRepository.findPlaylist(mobile,playlistTitle);
+        return journalled(() -> spotifyRepository.findPlaylist(mobile,playlistTitle));
+    }
+
+    public Playlist findPlaylistById(String mobile, int playlistId) throws Exception {
+
+        return journalled(() -> spotifyRepository.findPlaylistById(mobile,playlistId));
     }
 
     public Song likeSong(String mobile, String songTitle) throws Exception {
 
-        return spotifyRepository.likeSong(mobile,songTitle);
+        if(likePipeline != null)
+            return queueLike(mobile,songTitle);
+
+        return journalled(() -> spotifyRepository.likeSong(mobile,songTitle));
+    }
+
+    // Validates on the request thread, so the caller still gets "User does not exist" and "Song does not exist",
+    // then leaves the like to the pipeline. The returned song doesn't include this like yet.
+    private Song queueLike(String mobile, String songTitle) throws Exception {
+
+        try {
+            User user = spotifyRepository.checkIfUserExists(mobile);
+            if(user == null)
+                throw new Exception("User does not exist");
+
+            Song song = spotifyRepository.checkIfSongExists(songTitle);
+            if(song == null)
+                throw new Exception("Song does not exist");
+
+            likePipeline.submit(new LikePipeline.Like(user,song));
+            return song;
+        } catch(Exception e) {
+            SpotifyMetrics.exception(e);
+            throw e;
+        }
+    }
+
+    // Runs on the pipeline's consumer thread; the whole batch is one mutation.
+    private void applyLikes(List<LikePipeline.Like> likes) {
+
+        journalled(() -> {
+            spotifyRepository.applyLikes(likes);
+            return null;
+        });
+    }
+
+    public long getVersion() {
+
+        return spotifyRepository.getVersion();
     }
 
     public String mostPopularArtist() {
 
-        return spotifyRepository.mostPopularArtist();
+        return readCache.get("popular-artist", spotifyRepository::mostPopularArtist);
+    }
+
+    public List<String> mostPopularArtists(int k) {
+
+        return readCache.get("popular-artists:" + k, () -> spotifyRepository.mostPopularArtists(k));
     }
 
     public String mostPopularSong() {
 
-        return spotifyRepository.mostPopularSong();
+        return readCache.get("popular-song", spotifyRepository::mostPopularSong);
+    }
+
+    public List<String> mostPopularSongs(int k) {
+
+        return readCache.get("popular-songs:" + k, () -> spotifyRepository.mostPopularSongs(k));
+    }
+
+    // Pages aren't cached: each one is bounded and cheap, and repeat polls are answered by ETag before reaching here.
+
+    public Page<Song> getPlaylistSongs(int playlistId, Integer cursor, int limit) throws Exception {
+
+        return spotifyRepository.getPlaylistSongs(playlistId,cursor,limit);
+    }
+
+    public Page<User> getPlaylistListeners(int playlistId, Integer cursor, int limit) throws Exception {
+
+        return spotifyRepository.getPlaylistListeners(playlistId,cursor,limit);
+    }
+
+    public Page<Song> getAlbumSongs(String albumTitle, Integer cursor, int limit) throws Exception {
+
+        return spotifyRepository.getAlbumSongs(albumTitle,cursor,limit);
+    }
+
+    public Page<Album> getArtistAlbums(String artistName, Integer cursor, int limit) throws Exception {
+
+        return spotifyRepository.getArtistAlbums(artistName,cursor,limit);
+    }
+
+    // Not cached: a window slides with the clock without the version moving.
+    public Map<String, List<String>> trending(String window, int k) throws Exception {
+
+        Map<String, List<String>> trending = new LinkedHashMap<>();
+        trending.put("songs", spotifyRepository.trendingSongs(window,k));
+        trending.put("artists", spotifyRepository.trendingArtists(window,k));
+        return trending;
+    }
+
+    public List<SearchIndex.Hit> search(String query, int limit) throws Exception {
+
+        return spotifyRepository.search(query,limit);
+    }
+
+    public List<String> recommendSongs(String mobile, int k) throws Exception {
+
+        return spotifyRepository.recommendSongs(mobile,k);
+    }
+
+    // Snapshots of the whole dataset, for moving it between instances; see SpotifySnapshot.
+    // A sharded repository can't be snapshotted.
+
+    private SpotifyRepository unsharded(String operation) throws Exception {
+        if(!(spotifyRepository instanceof SpotifyRepository))
+            throw new Exception(operation + " is not supported with spotify.shards");
+        return (SpotifyRepository) spotifyRepository;
+    }
+
+    // Writes a snapshot to a temporary file, which the caller deletes once it is sent. Writes carry on meanwhile.
+    public Path exportSnapshot() throws Exception {
+
+        SpotifyRepository repository = unsharded("Export");
+
+        Path file = Files.createTempFile("spotify-export", ".bin");
+        try {
+            SpotifySnapshot.write(repository,0,file);
+            return file;
+        } catch(Exception e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    // Loads an exported snapshot into this instance, which must not have anything in it yet.
+    // Imports serialize, so two can't both find the repository empty.
+    public synchronized void importSnapshot(InputStream snapshot) throws Exception {
+
+        SpotifyRepository repository = unsharded("Import");
+        if(!repository.isEmpty())
+            throw new Exception("Repository is not empty");
+
+        Path file = Files.createTempFile("spotify-import", ".bin");
+        try {
+            Files.copy(snapshot,file,StandardCopyOption.REPLACE_EXISTING);
+            if(journal == null)
+                SpotifySnapshot.read(file,repository);
+            else
+                journal.load(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
     }
 }
@@ -0,0 +1,486 @@
+package com.driver;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Compact binary image of the whole repository, for the journal's checkpoints and for moving a dataset
+// between instances. Entities are written in creation order and refer to each other by id, so loading is
+// one sequential pass over a memory-mapped file.
+//
+// Layout: magic, version and generation (big-endian), then sections, each a kind byte, the length of its
+// body as a long, and the body; a reader skips kinds it doesn't know. Sections come in the order titles,
+// artists, albums, songs, users, playlists, likes, recommender, then an end section. Each is mapped on its
+// own, so a file can be far larger than the 2 GB one mapping covers; likes are split into sections of
+// SONGS_PER_LIKES_SECTION songs for that reason.
+//
+// Inside sections, numbers are unsigned varints (7 bits a byte, low first), zigzag-encoded where they can
+// be negative, and ids are positions in their sections. Song and album titles are ids into the titles
+// section, which holds each distinct title once, in the catalogue's dictionary order. Other strings are
+// a varint of the UTF-8 length plus one, 0 for null, then the bytes. A song's likers are sorted and written
+// as the gaps between them, so a like mostly takes a byte or two. Like counters aren't stored; they are
+// recounted from the likers. The recommender's lists are stored as they are instead of replaying the likes.
+public class SpotifySnapshot {
+
+    private static final int MAGIC = 0x53505446;       // "SPTF"
+    private static final int VERSION = 3;
+
+    private static final byte END = 0;
+    private static final byte TITLES = 1;
+    private static final byte ARTISTS = 2;
+    private static final byte ALBUMS = 3;
+    private static final byte SONGS = 4;
+    private static final byte USERS = 5;
+    private static final byte PLAYLISTS = 6;
+    private static final byte LIKES = 7;
+    private static final byte RECOMMENDER = 8;
+
+    private static final int HEADER_BYTES = 16;
+    private static final int SECTION_HEADER_BYTES = 9;
+    private static final int SONGS_PER_LIKES_SECTION = 1 << 16;
+
+    // Buffered writes to a file, with sections whose length is filled in when they end.
+    static class Output implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        private long sectionStart;
+
+        Output(FileChannel channel){
+            this.channel = channel;
+        }
+
+        void beginSection(byte kind) throws IOException {
+            ensure(SECTION_HEADER_BYTES);
+            buffer.put(kind);
+            sectionStart = channel.position() + buffer.position();
+            buffer.putLong(0);
+        }
+
+        void endSection() throws IOException {
+            flush();
+            long length = channel.position() - sectionStart - Long.BYTES;
+            ByteBuffer bytes = ByteBuffer.allocate(Long.BYTES).putLong(0, length);
+            channel.write(bytes, sectionStart);
+        }
+
+        void writeInt(int value) throws IOException {
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void writeLong(long value) throws IOException {
+            ensure(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        void writeVarInt(int value) throws IOException {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        void writeVarLong(long value) throws IOException {
+            ensure(10);
+            while((value & ~0x7FL) != 0) {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        void writeSignedVarInt(int value) throws IOException {
+            writeVarInt((value << 1) ^ (value >> 31));
+        }
+
+        void writeString(String value) throws IOException {
+            if(value == null) {
+                writeVarInt(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length + 1);
+            for(int offset = 0; offset < bytes.length; ) {
+                ensure(1);
+                int chunk = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, chunk);
+                offset += chunk;
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if(buffer.remaining() < bytes)
+                flush();
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while(buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    // Writes to a temporary file first and moves it into place, so a crash never leaves a torn snapshot.
+    //
+    // Writers may carry on meanwhile. Every count is taken before what it refers to, and references past
+    // the counts are left out, so the snapshot always loads: songs and albums before titles, albums before
+    // artists, and users before the playlists and likes that name them. Playlists of later users are left out.
+    public static void write(SpotifyRepository repository, long generation, Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            try(Output out = new Output(channel)) {
+                ColumnarCatalogue catalogue = repository.catalogue;
+                int songCount = catalogue.songCount();
+                int albumCount = catalogue.albumCount();
+                int titleCount = catalogue.titleCount();
+                List<Artist> artists = copy(repository.artists);
+                List<User> users = copy(repository.users);
+                List<Playlist> playlists = new ArrayList<>();
+                for(Playlist playlist : copy(repository.playlists)) {
+                    if(repository.playlistCreatorMap.get(playlist).getId() < users.size())
+                        playlists.add(playlist);
+                }
+
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(generation);
+
+                out.beginSection(TITLES);
+                out.writeVarInt(titleCount);
+                for(int title = 0; title < titleCount; title++)
+                    out.writeString(catalogue.title(title));
+                out.endSection();
+
+                out.beginSection(ARTISTS);
+                out.writeVarInt(artists.size());
+                for(Artist artist : artists)
+                    out.writeString(artist.getName());
+                out.endSection();
+
+                out.beginSection(ALBUMS);
+                out.writeVarInt(albumCount);
+                for(int album = 0; album < albumCount; album++) {
+                    out.writeVarInt(catalogue.albumTitleId(album));
+                    out.writeVarInt(catalogue.albumArtist(album));
+                    Date releaseDate = catalogue.albumReleaseDate(album);
+                    out.writeVarLong(releaseDate == null ? 0 : zigzag(releaseDate.getTime()) + 1);
+                }
+                out.endSection();
+
+                out.beginSection(SONGS);
+                out.writeVarInt(songCount);
+                for(int song = 0; song < songCount; song++) {
+                    out.writeVarInt(catalogue.songTitleId(song));
+                    out.writeVarInt(catalogue.songAlbum(song));
+                    out.writeSignedVarInt(catalogue.songLength(song));
+                }
+                out.endSection();
+
+                out.beginSection(USERS);
+                out.writeVarInt(users.size());
+                for(User user : users) {
+                    out.writeString(user.getName());
+                    out.writeString(user.getMobile());
+                }
+                out.endSection();
+
+                // The creator is always the first listener.
+                out.beginSection(PLAYLISTS);
+                out.writeVarInt(playlists.size());
+                for(Playlist playlist : playlists) {
+                    out.writeString(playlist.getTitle());
+
+                    List<Song> songs = repository.playlistSongMap.get(playlist);
+                    if(songs instanceof ColumnarCatalogue.LengthRule) {
+                        out.writeSignedVarInt(-1);
+                        out.writeSignedVarInt(((ColumnarCatalogue.LengthRule) songs).getLength());
+                    } else {
+                        ColumnarCatalogue.SongList playlistSongs = (ColumnarCatalogue.SongList) songs;
+                        int[] ids = new int[playlistSongs.size()];
+                        int kept = 0;
+                        for(int i = 0; i < ids.length; i++) {
+                            int id = playlistSongs.getId(i);
+                            if(id < songCount)
+                                ids[kept++] = id;
+                        }
+                        out.writeSignedVarInt(kept);
+                        for(int i = 0; i < kept; i++)
+                            out.writeVarInt(ids[i]);
+                    }
+
+                    List<User> listeners = copy(repository.playlistListenerMap.get(playlist));
+                    int kept = 0;
+                    for(User listener : listeners) {
+                        if(listener.getId() < users.size())
+                            kept++;
+                    }
+                    out.writeVarInt(kept);
+                    for(User listener : listeners) {
+                        if(listener.getId() < users.size())
+                            out.writeVarInt(listener.getId());
+                    }
+                }
+                out.endSection();
+
+                // Each section starts with its first song and song count.
+                for(int first = 0; first < songCount; first += SONGS_PER_LIKES_SECTION) {
+                    int last = Math.min(songCount, first + SONGS_PER_LIKES_SECTION);
+                    out.beginSection(LIKES);
+                    out.writeVarInt(first);
+                    out.writeVarInt(last - first);
+                    for(int song = first; song < last; song++)
+                        writeLikers(out, catalogue.likersIfPresent(song), users.size());
+                    out.endSection();
+                }
+
+                out.beginSection(RECOMMENDER);
+                repository.recommender.write(out, songCount, users.size());
+                out.endSection();
+
+                out.beginSection(END);
+                out.endSection();
+            }
+            channel.force(false);
+        }
+
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeLikers(Output out, LikeSet likers, int userCount) throws IOException {
+        int[] ids = likers == null ? new int[0] : likers.toArray();
+        Arrays.sort(ids);
+        int kept = 0;
+        while(kept < ids.length && ids[kept] < userCount)
+            kept++;
+
+        out.writeVarInt(kept);
+        int previous = 0;
+        for(int i = 0; i < kept; i++) {
+            out.writeVarInt(ids[i] - previous);
+            previous = ids[i];
+        }
+    }
+
+    // Loads the snapshot into an empty repository and returns its generation.
+    public static long read(Path file, SpotifyRepository repository) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(channel, header, 0);
+
+            if(header.getInt() != MAGIC)
+                throw new IOException("Not a snapshot: " + file);
+            int version = header.getInt();
+            if(version != VERSION)
+                throw new IOException("Unsupported snapshot version " + version);
+            long generation = header.getLong();
+
+            Loader loader = new Loader(repository);
+            ByteBuffer sectionHeader = ByteBuffer.allocate(SECTION_HEADER_BYTES);
+            for(long position = HEADER_BYTES; ; ) {
+                sectionHeader.clear();
+                readFully(channel, sectionHeader, position);
+                byte kind = sectionHeader.get();
+                long length = sectionHeader.getLong();
+                if(kind == END)
+                    break;
+
+                loader.load(kind, channel.map(FileChannel.MapMode.READ_ONLY, position + SECTION_HEADER_BYTES, length));
+                position += SECTION_HEADER_BYTES + length;
+            }
+            loader.finish();
+            return generation;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Snapshot ends early");
+        }
+        buffer.flip();
+    }
+
+    // Entities loaded so far, by position, for the sections after them.
+    private static class Loader {
+        final SpotifyRepository repository;
+        String[] titles = new String[0];
+        Artist[] artists = new Artist[0];
+        Album[] albums = new Album[0];
+        Song[] songs = new Song[0];
+        User[] users = new User[0];
+        final List<Song> likedSongs = new ArrayList<>();
+        final Set<Artist> likedArtists = Collections.newSetFromMap(new IdentityHashMap<>());
+        int[] likers = new int[1024];
+
+        Loader(SpotifyRepository repository){
+            this.repository = repository;
+        }
+
+        void load(byte kind, ByteBuffer in){
+            switch(kind) {
+                case TITLES:
+                    titles = new String[readVarInt(in)];
+                    for(int i = 0; i < titles.length; i++)
+                        titles[i] = readVarString(in);
+                    break;
+
+                case ARTISTS:
+                    artists = new Artist[readVarInt(in)];
+                    for(int i = 0; i < artists.length; i++)
+                        artists[i] = repository.createArtist(readVarString(in));
+                    break;
+
+                case ALBUMS:
+                    albums = new Album[readVarInt(in)];
+                    for(int i = 0; i < albums.length; i++) {
+                        String title = titles[readVarInt(in)];
+                        Artist artist = artists[readVarInt(in)];
+                        long releaseDate = readVarLong(in);
+                        albums[i] = repository.createAlbum(title, artist.getName());
+                        albums[i].setReleaseDate(releaseDate == 0 ? null : new Date(unzigzag(releaseDate - 1)));
+                    }
+                    break;
+
+                case SONGS:
+                    songs = new Song[readVarInt(in)];
+                    for(int i = 0; i < songs.length; i++) {
+                        String title = titles[readVarInt(in)];
+                        Album album = albums[readVarInt(in)];
+                        songs[i] = repository.addSong(title, album, readSignedVarInt(in));
+                    }
+                    break;
+
+                case USERS:
+                    users = new User[readVarInt(in)];
+                    for(int i = 0; i < users.length; i++) {
+                        String name = readVarString(in);
+                        users[i] = repository.createUser(name, readVarString(in));
+                    }
+                    break;
+
+                case PLAYLISTS:
+                    loadPlaylists(in);
+                    break;
+
+                case LIKES:
+                    loadLikes(in);
+                    break;
+
+                case RECOMMENDER:
+                    // Replaces what the playlists above recorded, which the saved lists already count.
+                    repository.recommender.read(in);
+                    break;
+
+                default:
+                    // Written by a newer version; what this one knows is still complete.
+                    break;
+            }
+        }
+
+        private void loadPlaylists(ByteBuffer in){
+            int playlistCount = readVarInt(in);
+            for(int i = 0; i < playlistCount; i++) {
+                Playlist playlist = new Playlist(readVarString(in));
+
+                int songCount = readSignedVarInt(in);
+                List<Song> playlistSongs;
+                if(songCount < 0)
+                    playlistSongs = repository.songsWithLength(readSignedVarInt(in));
+                else {
+                    ColumnarCatalogue.SongList ids = repository.catalogue.newSongList();
+                    for(int s = 0; s < songCount; s++)
+                        ids.addId(songs[readVarInt(in)].getId());
+                    playlistSongs = ids;
+                }
+
+                int listenerCount = readVarInt(in);
+                User creator = users[readVarInt(in)];
+                repository.addPlaylist(creator, playlist, playlistSongs);
+                for(int l = 1; l < listenerCount; l++)
+                    repository.addListener(users[readVarInt(in)], playlist);
+            }
+        }
+
+        private void loadLikes(ByteBuffer in){
+            int first = readVarInt(in);
+            int count = readVarInt(in);
+            for(int s = first; s < first + count; s++) {
+                int likeCount = readVarInt(in);
+                if(likeCount == 0)
+                    continue;
+
+                if(likers.length < likeCount)
+                    likers = new int[Math.max(likeCount, likers.length * 2)];
+                int user = 0;
+                for(int l = 0; l < likeCount; l++) {
+                    user += readVarInt(in);
+                    likers[l] = users[user].getId();
+                }
+                Song song = songs[s];
+                repository.catalogue.likers(song.getId()).addAll(likers, likeCount);
+
+                Artist artist = repository.getArtistOfTheAlbum(repository.getAlbumOfTheSong(song));
+                song.setLikes(likeCount);
+                artist.setLikes(artist.getLikes() + likeCount);
+                likedSongs.add(song);
+                likedArtists.add(artist);
+            }
+        }
+
+        // The leaderboards are refreshed once, so their published tops are built once.
+        void finish(){
+            repository.songLeaderboard.refreshAll(likedSongs, Song::getId);
+            repository.artistLeaderboard.refreshAll(likedArtists, Artist::getId);
+        }
+    }
+
+    static int readVarInt(ByteBuffer in){
+        return (int) readVarLong(in);
+    }
+
+    static long readVarLong(ByteBuffer in){
+        long value = 0;
+        for(int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if(b >= 0)
+                return value;
+        }
+    }
+
+    static int readSignedVarInt(ByteBuffer in){
+        int value = readVarInt(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long zigzag(long value){
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value){
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static String readVarString(ByteBuffer in){
+        int length = readVarInt(in) - 1;
+        if(length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static <T> List<T> copy(List<T> list){
+        if(list == null)
+            return Collections.emptyList();
+        return new ArrayList<>(AppendOnlyList.snapshot(list));
+    }
+}
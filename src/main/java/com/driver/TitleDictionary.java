@@ -0,0 +1,186 @@
+package com.driver;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Song and album titles for ColumnarCatalogue. Each distinct title is stored once, as length-prefixed
+// UTF-8 in large byte chunks, and the catalogue's columns refer to it by a dense int id.
+// find() and get() are lock-free; add() must be called by one thread at a time.
+public class TitleDictionary {
+
+    private static final int CHUNK_BITS = 20;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int MAX_CHUNKS = 1 << (32 - CHUNK_BITS);       // positions are unsigned ints
+
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private final boolean offHeap;
+
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+    private int writeChunk = -1;
+    private int writeOffset = CHUNK_SIZE;
+
+    private final IntColumn positions;          // chunk << CHUNK_BITS | offset, per id
+    private final IntColumn hashes;             // kept so the table can grow without decoding every title
+
+    // Open addressing, id + 1 per slot and 0 for empty. Replaced, never resized in place.
+    private volatile int[] table = new int[1024];
+    private volatile int size;
+
+    public TitleDictionary(boolean offHeap){
+        this.offHeap = offHeap;
+        this.positions = new IntColumn(offHeap, 0);
+        this.hashes = new IntColumn(offHeap, 0);
+    }
+
+    public int size(){
+        return size;
+    }
+
+    // The id of the title, or -1 if it has never been added.
+    public int find(String title){
+        if(title == null)
+            return -1;
+
+        byte[] bytes = title.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(bytes);
+        int[] slots = table;
+        int mask = slots.length - 1;
+
+        for(int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int entry = (int) SLOT.getAcquire(slots, slot);
+            if(entry == 0)
+                return -1;
+            int id = entry - 1;
+            if(hashes.get(id) == hash && matches(id, bytes))
+                return id;
+        }
+    }
+
+    // The id of the title, adding it if it is new.
+    public int add(String title){
+        byte[] bytes = title.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(bytes);
+        int[] slots = table;
+        int mask = slots.length - 1;
+
+        int slot = hash & mask;
+        for(; ; slot = (slot + 1) & mask) {
+            int entry = slots[slot];
+            if(entry == 0)
+                break;
+            if(hashes.get(entry - 1) == hash && matches(entry - 1, bytes))
+                return entry - 1;
+        }
+
+        int id = size;
+        positions.ensureCapacity(id);
+        hashes.ensureCapacity(id);
+        positions.set(id, append(bytes));
+        hashes.set(id, hash);
+
+        // The bytes and position are written before the slot, so a reader that finds the id can read the title.
+        SLOT.setRelease(slots, slot, id + 1);
+        size = id + 1;
+
+        if(size * 2 > slots.length)
+            grow();
+        return id;
+    }
+
+    public String get(int id){
+        int position = positions.get(id);
+        ByteBuffer chunk = chunks[position >>> CHUNK_BITS];
+        int offset = position & (CHUNK_SIZE - 1);
+
+        int length = 0;
+        for(int shift = 0; ; shift += 7) {
+            byte b = chunk.get(offset++);
+            length |= (b & 0x7F) << shift;
+            if(b >= 0)
+                break;
+        }
+
+        byte[] bytes = new byte[length];
+        for(int i = 0; i < length; i++)
+            bytes[i] = chunk.get(offset + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private boolean matches(int id, byte[] bytes){
+        int position = positions.get(id);
+        ByteBuffer chunk = chunks[position >>> CHUNK_BITS];
+        int offset = position & (CHUNK_SIZE - 1);
+
+        int length = 0;
+        for(int shift = 0; ; shift += 7) {
+            byte b = chunk.get(offset++);
+            length |= (b & 0x7F) << shift;
+            if(b >= 0)
+                break;
+        }
+
+        if(length != bytes.length)
+            return false;
+        for(int i = 0; i < length; i++) {
+            if(chunk.get(offset + i) != bytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    // Writes the varint length and the bytes into the current chunk, starting a new one when they don't fit.
+    private int append(byte[] bytes){
+        int needed = 5 + bytes.length;
+        if(needed > CHUNK_SIZE)
+            throw new IllegalArgumentException("Title is too long");
+
+        if(writeOffset + needed > CHUNK_SIZE) {
+            if(writeChunk + 1 >= MAX_CHUNKS)
+                throw new IllegalStateException("Title dictionary is full");
+            ByteBuffer chunk = offHeap ? ByteBuffer.allocateDirect(CHUNK_SIZE) : ByteBuffer.allocate(CHUNK_SIZE);
+            ByteBuffer[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+            grown[grown.length - 1] = chunk;
+            chunks = grown;
+            writeChunk++;
+            writeOffset = 0;
+        }
+
+        ByteBuffer chunk = chunks[writeChunk];
+        int position = writeChunk << CHUNK_BITS | writeOffset;
+
+        int length = bytes.length;
+        while((length & ~0x7F) != 0) {
+            chunk.put(writeOffset++, (byte) ((length & 0x7F) | 0x80));
+            length >>>= 7;
+        }
+        chunk.put(writeOffset++, (byte) length);
+        for(byte b : bytes)
+            chunk.put(writeOffset++, b);
+        return position;
+    }
+
+    private void grow(){
+        int[] grown = new int[table.length * 2];
+        int mask = grown.length - 1;
+        for(int id = 0; id < size; id++) {
+            int slot = hashes.get(id) & mask;
+            while(grown[slot] != 0)
+                slot = (slot + 1) & mask;
+            grown[slot] = id + 1;
+        }
+        table = grown;
+    }
+
+    private static int hash(byte[] bytes){
+        int h = Arrays.hashCode(bytes);
+        return h ^ (h >>> 16);
+    }
+
+    public long bytes(){
+        return (long) chunks.length * CHUNK_SIZE + (long) table.length * Integer.BYTES + positions.bytes() + hashes.bytes();
+    }
+}
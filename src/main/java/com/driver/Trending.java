@@ -0,0 +1,53 @@
+package com.driver;
+
+import java.util.*;
+import java.util.function.LongSupplier;
+
+// Likes of songs and artists over the last hour, day and week, for the trending endpoint.
+// mostPopularSong and mostPopularArtist rank all-time likes, where the back catalogue dominates.
+// Each window re-ranks at most once a second, so trends can trail the likes by that much.
+//
+//   window   buckets
+//   1h       60 of a minute
+//   1d       96 of 15 minutes
+//   1w       168 of an hour
+public class Trending {
+
+    private static final long MINUTE = 60_000L;
+
+    private final Map<String, TrendingWindow<Song>> songs = new LinkedHashMap<>();
+    private final Map<String, TrendingWindow<Artist>> artists = new LinkedHashMap<>();
+
+    public Trending(LongSupplier clock){
+        window("1h", MINUTE, 60, clock);
+        window("1d", 15 * MINUTE, 96, clock);
+        window("1w", 60 * MINUTE, 168, clock);
+    }
+
+    private void window(String name, long bucketMillis, int bucketCount, LongSupplier clock){
+        songs.put(name, new TrendingWindow<>(bucketMillis, bucketCount, clock));
+        artists.put(name, new TrendingWindow<>(bucketMillis, bucketCount, clock));
+    }
+
+    // Counts likes of a song, or of an artist, now.
+    public void recordSong(Song song, int likes){
+        for(TrendingWindow<Song> window : songs.values())
+            window.record(song, likes);
+    }
+
+    public void recordArtist(Artist artist, int likes){
+        for(TrendingWindow<Artist> window : artists.values())
+            window.record(artist, likes);
+    }
+
+    // Up to k songs most liked in the window, or null if there is no such window.
+    public List<TrendingWindow.Trend<Song>> songs(String window, int k){
+        TrendingWindow<Song> songWindow = songs.get(window);
+        return songWindow == null ? null : songWindow.top(k);
+    }
+
+    public List<TrendingWindow.Trend<Artist>> artists(String window, int k){
+        TrendingWindow<Artist> artistWindow = artists.get(window);
+        return artistWindow == null ? null : artistWindow.top(k);
+    }
+}
@@ -0,0 +1,296 @@
+package com.driver;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Likes per item over a sliding window, counted in a ring of fixed-width buckets. A like goes into the
+// bucket of the current time; when the clock moves past a bucket's slot in the ring, the first like there
+// replaces it with a fresh one. The window slides a bucket at a time, so with 60 one-minute buckets it
+// covers between 59 and 60 minutes.
+//
+// Recording takes no lock: buckets are concurrent maps of LongAdders, so likes of different items only
+// meet in the map's bins, and likes of one hot item spread over the adder's cells. Every like lands in
+// several windows, so a lock per window would put all like traffic behind a handful of monitors.
+//
+// Each item's likes over the window are kept as a running total: a like adds to the item's bucket count
+// and to its total, and a bucket leaving the window subtracts its counts from the totals. Items whose
+// total passes the lowest one kept by the last ranking join a small set of candidates, and ranking only
+// sorts those, so it costs O(c log c) for c candidates however many items the window holds. Totals go
+// down only when a bucket expires, which can lift an item that isn't a candidate above those that are,
+// so the ranking after an expiry rescans the totals once, dropping items left with no likes.
+//
+// The ranking is rebuilt when top() is called at least refreshMillis after it was last built, and reused
+// until then. Trends lag the likes by up to refreshMillis.
+public class TrendingWindow<T> {
+
+    // Rankings are rebuilt at most this often unless the constructor says otherwise.
+    static final long DEFAULT_REFRESH_MILLIS = 1000;
+
+    public static class Trend<T> {
+        final T item;
+        final int likes;
+
+        Trend(T item, int likes){
+            this.item = item;
+            this.likes = likes;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        public int getLikes() {
+            return likes;
+        }
+    }
+
+    // An item's likes in one bucket, and how many of them were subtracted from its total once the bucket expired.
+    private static class Count {
+        final LongAdder likes = new LongAdder();
+        long subtracted;                                                           // guarded by this
+    }
+
+    private static class Bucket<T> {
+        final long epoch;                                                          // clock / bucketMillis
+        final ConcurrentHashMap<T, Count> counts = new ConcurrentHashMap<>();
+        volatile boolean expired;
+
+        Bucket(long epoch){
+            this.epoch = epoch;
+        }
+    }
+
+    // An item's likes over the window. seq orders the items by when their totals were made, for ties, so a
+    // tie goes to the item that has been liked in the window without a break for longest. A total left with
+    // no likes is removed; likes added to it after that are forwarded to the item's next total.
+    private static class Total<T> {
+        final T item;
+        final long seq;
+        final LongAdder likes = new LongAdder();
+        volatile boolean removed;
+        long forwarded;                                                            // guarded by this
+
+        Total(T item, long seq){
+            this.item = item;
+            this.seq = seq;
+        }
+    }
+
+    // A candidate's total as it was read for one ranking.
+    private static class Ranked<T> {
+        final T item;
+        final long seq;
+        final long likes;
+
+        Ranked(Total<T> total, long likes){
+            this.item = total.item;
+            this.seq = total.seq;
+            this.likes = likes;
+        }
+    }
+
+    private static final Comparator<Ranked<?>> RANKING = (a, b) -> {
+        if(a.likes != b.likes)
+            return Long.compare(b.likes, a.likes);
+        return Long.compare(a.seq, b.seq);
+    };
+
+    private static class Ranking<T> {
+        final List<Trend<T>> top;
+        final int k;
+        final long builtAt;
+
+        Ranking(List<Trend<T>> top, int k, long builtAt){
+            this.top = top;
+            this.k = k;
+            this.builtAt = builtAt;
+        }
+    }
+
+    // Candidates a ranking keeps at least, so items just below the top don't have to work their way back in.
+    private static final int MIN_CANDIDATES = 64;
+
+    private final long bucketMillis;
+    private final long refreshMillis;
+    private final LongSupplier clock;
+    private final AtomicReferenceArray<Bucket<T>> buckets;
+    private final AtomicLong nextSeq = new AtomicLong();
+    private final ConcurrentHashMap<T, Total<T>> totals = new ConcurrentHashMap<>();
+
+    // Every item that may be in the top: those kept by the last ranking, and any whose total passed floor since.
+    private final Set<T> candidates = ConcurrentHashMap.newKeySet();
+    private volatile long floor;
+    private int kept;                                                              // guarded by this
+    private volatile boolean rescan = true;
+
+    private volatile Ranking<T> ranking;
+
+    public TrendingWindow(long bucketMillis, int bucketCount, LongSupplier clock){
+        this(bucketMillis, bucketCount, DEFAULT_REFRESH_MILLIS, clock);
+    }
+
+    public TrendingWindow(long bucketMillis, int bucketCount, long refreshMillis, LongSupplier clock){
+        this.bucketMillis = bucketMillis;
+        this.refreshMillis = refreshMillis;
+        this.clock = clock;
+        this.buckets = new AtomicReferenceArray<>(bucketCount);
+    }
+
+    public void record(T item, int likes){
+        Bucket<T> bucket = bucket(clock.getAsLong() / bucketMillis);
+        Count count = bucket.counts.get(item);
+        if(count == null)
+            count = bucket.counts.computeIfAbsent(item, i -> new Count());
+        count.likes.add(likes);
+        long total = addToTotal(item, likes);
+
+        // The bucket expired while the like went in, and its counts may have been subtracted without it.
+        if(bucket.expired)
+            subtractExpired(item, count);
+        if(total > floor)
+            candidates.add(item);
+    }
+
+    // The bucket for the epoch, replacing an older one in its slot. A clock going backwards, or a writer
+    // that read the clock just before another moved the slot on, counts in the newer bucket.
+    private Bucket<T> bucket(long epoch){
+        int slot = (int) Math.floorMod(epoch, (long) buckets.length());
+        while(true) {
+            Bucket<T> current = buckets.get(slot);
+            if(current != null && current.epoch >= epoch)
+                return current;
+            Bucket<T> fresh = new Bucket<>(epoch);
+            if(buckets.compareAndSet(slot, current, fresh)) {
+                if(current != null)
+                    expire(current);
+                return fresh;
+            }
+        }
+    }
+
+    // Called by whoever took the bucket out of the ring.
+    private void expire(Bucket<T> bucket){
+        bucket.expired = true;
+        for(Map.Entry<T, Count> entry : bucket.counts.entrySet())
+            subtractExpired(entry.getKey(), entry.getValue());
+        rescan = true;
+    }
+
+    // Subtracts what the count gained since it was last subtracted. A like that goes into an expired bucket
+    // is subtracted either by the expiry, if it saw the like, or by the like's own record() after it.
+    private void subtractExpired(T item, Count count){
+        synchronized (count) {
+            long likes = count.likes.sum();
+            if(likes != count.subtracted) {
+                addToTotal(item, count.subtracted - likes);
+                count.subtracted = likes;
+            }
+        }
+    }
+
+    // Adds to the item's total and returns the total after it.
+    private long addToTotal(T item, long likes){
+        Total<T> total = totals.get(item);
+        if(total == null)
+            total = totals.computeIfAbsent(item, i -> new Total<>(i, nextSeq.getAndIncrement()));
+        total.likes.add(likes);
+        if(total.removed)
+            forward(total);
+        return total.likes.sum();
+    }
+
+    // Moves likes that reached a removed total to the item's current one. Whichever of the remover and the
+    // adders comes last sees what the others added, and the monitor keeps them from moving a like twice.
+    private void forward(Total<T> total){
+        synchronized (total) {
+            long likes = total.likes.sum();
+            if(likes != total.forwarded) {
+                addToTotal(total.item, likes - total.forwarded);
+                total.forwarded = likes;
+            }
+        }
+    }
+
+    // Up to k items liked in the window, most liked first.
+    public List<Trend<T>> top(int k){
+        if(k <= 0)
+            return new ArrayList<>();
+
+        long now = clock.getAsLong();
+        Ranking<T> current = ranking;
+        if(current == null || k > current.k || now - current.builtAt >= refreshMillis || now < current.builtAt) {
+            synchronized (this) {
+                current = ranking;
+                if(current == null || k > current.k || now - current.builtAt >= refreshMillis || now < current.builtAt)
+                    ranking = current = new Ranking<>(rank(now, k), k, now);
+            }
+        }
+        return new ArrayList<>(current.top.subList(0, Math.min(k, current.top.size())));
+    }
+
+    // Called holding the window's monitor.
+    private List<Trend<T>> rank(long now, int k){
+        // Buckets nobody has liked into since they left the window are still in the ring.
+        long epoch = now / bucketMillis;
+        for(int slot = 0; slot < buckets.length(); slot++) {
+            Bucket<T> bucket = buckets.get(slot);
+            if(bucket != null && bucket.epoch <= epoch - buckets.length() && buckets.compareAndSet(slot, bucket, null))
+                expire(bucket);
+        }
+
+        int keep = Math.max(k, MIN_CANDIDATES);
+        if(rescan || keep > kept) {
+            rescan = false;
+            for(Total<T> total : totals.values()) {
+                if(total.likes.sum() > 0)
+                    candidates.add(total.item);
+                else
+                    remove(total);
+            }
+        }
+
+        List<Ranked<T>> ranked = new ArrayList<>(candidates.size());
+        for(T item : candidates) {
+            Total<T> total = totals.get(item);
+            long likes = total == null ? 0 : total.likes.sum();
+            if(likes > 0)
+                ranked.add(new Ranked<>(total, likes));
+            else
+                candidates.remove(item);
+        }
+        ranked.sort(RANKING);
+
+        // Keeps the best candidates, and raises the floor to the last of them. An item dropped here whose
+        // total passed the new floor meanwhile goes back in.
+        kept = keep;
+        if(ranked.size() > keep) {
+            floor = ranked.get(keep - 1).likes;
+            for(Ranked<T> dropped : ranked.subList(keep, ranked.size())) {
+                candidates.remove(dropped.item);
+                Total<T> total = totals.get(dropped.item);
+                if(total != null && total.likes.sum() > floor)
+                    candidates.add(dropped.item);
+            }
+        } else {
+            floor = 0;
+        }
+
+        List<Trend<T>> result = new ArrayList<>(Math.min(k, ranked.size()));
+        for(Ranked<T> item : ranked.subList(0, Math.min(k, ranked.size())))
+            result.add(new Trend<>(item.item, (int) Math.min(item.likes, Integer.MAX_VALUE)));
+        return result;
+    }
+
+    // Drops a total that has no likes, forwarding any that arrive as it goes.
+    private void remove(Total<T> total){
+        if(total.likes.sum() != 0)
+            return;
+        total.removed = true;
+        totals.remove(total.item, total);
+        forward(total);
+    }
+}
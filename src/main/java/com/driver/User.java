@@ -3,6 +3,7 @@ package com.driver;
 import java.util.List;
 
 public class User {
+    private int id;                 // dense, assigned by SpotifyRepository in creation order
     private String name;
     private String mobile;
 
@@ -13,6 +14,14 @@ public class User {
         this.mobile = mobile;
     }
 
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
     public String getName() {
         return name;
     }
@@ -0,0 +1,58 @@
+package com.driver;
+
+import java.util.UUID;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+// Conditional GETs for the read endpoints whose answer only changes when the repository does.
+// The ETag is the repository's version, read before the handler runs, so a matching If-None-Match
+// is answered with 304 before the controller is called, and a write during the request at worst
+// tags a newer body with an older version, which the next poll simply refetches.
+//
+// The version restarts with the process, so the tag also carries an id of this run.
+@Configuration
+public class VersionEtagInterceptor implements HandlerInterceptor, WebMvcConfigurer {
+
+    private static final String RUN = Long.toHexString(UUID.randomUUID().getMostSignificantBits());
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry){
+        registry.addInterceptor(this).addPathPatterns(
+                "/spotify/popular-artist",
+                "/spotify/popular-artists",
+                "/spotify/popular-song",
+                "/spotify/popular-songs",
+                "/spotify/playlist-songs",
+                "/spotify/playlist-listeners",
+                "/spotify/album-songs",
+                "/spotify/artist-albums",
+                "/spotify/search",
+                "/spotify/recommendations");
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler){
+        if(!("GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod())))
+            return true;
+        if(!(handler instanceof HandlerMethod) || !(((HandlerMethod) handler).getBean() instanceof SpotifyController))
+            return true;
+
+        SpotifyController controller = (SpotifyController) ((HandlerMethod) handler).getBean();
+        String etag = "\"" + RUN + "-" + controller.spotifyService.getVersion() + "\"";
+
+        // Clients may keep the response but must revalidate it, which is the cheap request this is for.
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+
+        // Sets the ETag header, and the 304 status when If-None-Match matches.
+        return !new ServletWebRequest(request, response).checkNotModified(etag);
+    }
+}
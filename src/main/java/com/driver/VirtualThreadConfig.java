@@ -0,0 +1,45 @@
+package com.driver;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+// Runs every request, SpotifyController included, on its own virtual thread instead of Tomcat's
+// fixed worker pool, so concurrent /find-playlist and /like-song calls are capped by connections
+// rather than by threads. Enable with spotify.threads.virtual=true (a -D flag or application.properties).
+//
+// Virtual threads need a Java 21 runtime. The build still targets Java 11, so the executor is looked up
+// reflectively; on an older runtime the setting is ignored and the platform thread pool stays in place.
+// The repository's locks are ReentrantLocks and its synchronized sections never block, so request
+// threads don't pin their carriers.
+@Configuration
+@ConditionalOnProperty(name = "spotify.threads.virtual", havingValue = "true")
+public class VirtualThreadConfig {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VirtualThreadConfig.class);
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadExecutor() {
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        return protocolHandler -> {
+            if(executor != null)
+                protocolHandler.setExecutor(executor);
+        };
+    }
+
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch(ReflectiveOperationException e) {
+            LOG.warn("spotify.threads.virtual needs Java 21 or later, running on {}; keeping the platform thread pool",
+                    System.getProperty("java.version"));
+            return null;
+        }
+    }
+}
@@ -1,19 +1,1287 @@
 package com.driver.test;
 
 import com.driver.*;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.apache.coyote.ProtocolHandler;
 import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestMethodOrder;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.ApplicationContext;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
 @SpringBootTest(classes = Application.class)
+@AutoConfigureMockMvc
 @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
 public class TestCases {
 
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private ApplicationContext context;
+
+    private static final int THREADS = 8;
+
+    // Runs the task on THREADS threads released together, and rethrows the first failure.
+    private static void runConcurrently(ThreadTask task) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for(int t = 0; t < THREADS; t++) {
+                int thread = t;
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    task.run(thread);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for(Future<?> future : futures)
+                future.get();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private interface ThreadTask {
+        void run(int thread) throws Exception;
+    }
+
+    @Test
+    @Order(1)
+    public void concurrentCreatesKeepOneEntityPerKey() throws Exception {
+        SpotifyRepository repository = new SpotifyRepository();
+
+        runConcurrently(thread -> {
+            for(int i = 0; i < 2000; i++) {
+                repository.createUser("user" + i, "mobile" + i);
+                repository.createArtist("artist" + (i % 100));
+            }
+        });
+
+        assertEquals(2000, repository.users.size());
+        assertEquals(2000, repository.userMobileMap.size());
+        assertEquals(2000, repository.userPlaylistMap.size());
+        assertEquals(100, repository.artists.size());
+        assertEquals(100, repository.artistAlbumMap.size());
+    }
+
+    @Test
+    @Order(2)
+    public void concurrentLikesAreCountedExactlyOnce() throws Exception {
+        SpotifyRepository repository = new SpotifyRepository();
+        int songCount = 40;
+        int userCount = 300;
+
+        repository.createAlbum("album", "artist");
+        for(int s = 0; s < songCount; s++)
+            repository.createSong("song" + s, "album", 3);
+        for(int u = 0; u < userCount; u++)
+            repository.createUser("user" + u, "mobile" + u);
+
+        // Every thread likes every song for every user, each in its own order, so each like is attempted THREADS times.
+        runConcurrently(thread -> {
+            List<Integer> order = new ArrayList<>();
+            for(int i = 0; i < songCount * userCount; i++)
+                order.add(i);
+            Collections.shuffle(order, new Random(thread));
+            for(int i : order)
+                repository.likeSong("mobile" + (i % userCount), "song" + (i / userCount));
+        });
+
+        for(int s = 0; s < songCount; s++) {
+            Song song = repository.checkIfSongExists("song" + s);
+            assertEquals(userCount, song.getLikes());
+            assertEquals(userCount, repository.getLikesOfTheSong(song).size());
+        }
+        assertEquals(songCount * userCount, repository.checkIfArtistExists("artist").getLikes());
+    }
+
+    @Test
+    @Order(3)
+    public void concurrentListenersJoinExactlyOnce() throws Exception {
+        SpotifyRepository repository = new SpotifyRepository();
+        int userCount = 500;
+
+        for(int u = 0; u < userCount; u++)
+            repository.createUser("user" + u, "mobile" + u);
+        Playlist playlist = repository.createPlaylistOnLength("mobile0", "playlist", 3);
+
+        runConcurrently(thread -> {
+            for(int u = 0; u < userCount; u++)
+                repository.findPlaylist("mobile" + ((u + thread * 61) % userCount), "playlist");
+        });
+
+        assertEquals(userCount, repository.playlistListenerMap.get(playlist).size());
+        for(int u = 0; u < userCount; u++)
+            assertEquals(1, repository.userPlaylistMap.get(repository.checkIfUserExists("mobile" + u)).size());
+    }
+
+    @Test
+    @Order(4)
+    public void popularTiesGoToWhatWasCreatedFirst() throws Exception {
+        SpotifyRepository repository = new SpotifyRepository();
+        for(String artist : List.of("first artist", "second artist", "third artist")) {
+            repository.createAlbum(artist + " album", artist);
+            repository.createSong(artist + " song", artist + " album", 3);
+        }
+        repository.createSong("unliked", "first artist album", 3);
+        for(int u = 0; u < 3; u++)
+            repository.createUser("user" + u, "mobile" + u);
+
+        // Liked in the opposite order to creation, and the third once more, so the rest tie.
+        repository.likeSong("mobile0", "third artist song");
+        repository.likeSong("mobile1", "third artist song");
+        repository.likeSong("mobile0", "second artist song");
+        repository.likeSong("mobile0", "first artist song");
+
+        assertEquals(List.of("third artist song", "first artist song", "second artist song"), repository.mostPopularSongs(10));
+        assertEquals(List.of("third artist song", "first artist song"), repository.mostPopularSongs(2));
+        assertEquals(List.of("third artist", "first artist", "second artist"), repository.mostPopularArtists(10));
+        assertEquals(List.of(), repository.mostPopularArtists(0));
+        assertEquals("third artist song", repository.mostPopularSong());
+        assertEquals("third artist", repository.mostPopularArtist());
+    }
+
+    private static InputStream body(CharSequence text) {
+        return new ByteArrayInputStream(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    @Order(5)
+    public void importsReadJsonAndCsvInBatchesAndKeepWhatPrecedesAnError() throws Exception {
+        // The same rows as JSON and as CSV, with a quoted comma and quote, a nested value to skip and a missing field.
+        SpotifyRepository fromJson = new SpotifyRepository();
+        ImportResult json = new CatalogueImporter(fromJson::createUsers).importStream(body(
+                "[{\"name\":\"Smith, \\\"Jo\\\"\",\"mobile\":\"1\",\"extra\":{\"a\":[1,2]}}," +
+                "{\"name\":null,\"mobile\":\"2\"},{\"name\":\"no mobile\"}]"), "application/json");
+        SpotifyRepository fromCsv = new SpotifyRepository();
+        ImportResult csv = new CatalogueImporter(fromCsv::createUsers).importStream(body(
+                "name,mobile\n\"Smith, \"\"Jo\"\"\",1\n\n,2\nno mobile\n"), "text/csv; charset=utf-8");
+
+        for(ImportResult result : List.of(json, csv)) {
+            assertEquals(3, result.getRows());
+            assertEquals(2, result.getCreated());
+            assertEquals(1, result.getFailed());
+            assertEquals(3, result.getErrors().get(0).getRow());
+            assertEquals("Missing mobile", result.getErrors().get(0).getMessage());
+        }
+        assertEquals("Smith, \"Jo\"", fromJson.checkIfUserExists("1").getName());
+        assertEquals("Smith, \"Jo\"", fromCsv.checkIfUserExists("1").getName());
+
+        // Rows reach the repository a batch at a time.
+        List<Integer> batches = new ArrayList<>();
+        StringBuilder rows = new StringBuilder("name,mobile\n");
+        for(int i = 0; i < 2500; i++)
+            rows.append("user,").append(i).append('\n');
+        ImportResult batched = new CatalogueImporter((batch, result) -> {
+            batches.add(batch.size());
+            batch.forEach(row -> result.rowSucceeded());
+        }).importStream(body(rows), "text/csv");
+        assertEquals(List.of(CatalogueImporter.BATCH_SIZE, CatalogueImporter.BATCH_SIZE, 500), batches);
+        assertEquals(2500, batched.getCreated());
+
+        // Every failure is counted but only the first are reported.
+        rows = new StringBuilder("name\n");
+        for(int i = 0; i < 1500; i++)
+            rows.append("user").append(i).append('\n');
+        ImportResult failures = new CatalogueImporter(new SpotifyRepository()::createUsers).importStream(body(rows), "text/csv");
+        assertEquals(1500, failures.getFailed());
+        assertEquals(ImportResult.MAX_REPORTED_ERRORS, failures.getErrors().size());
+
+        // JSON that breaks off keeps the rows before the break and reports where it broke.
+        SpotifyRepository partial = new SpotifyRepository();
+        ImportResult malformed = new CatalogueImporter(partial::createArtists).importStream(body(
+                "[{\"name\":\"first\"},{\"name\":\"second\"},{\"name\" \"third\"}]"), "application/json");
+        assertEquals(2, malformed.getCreated());
+        assertEquals(1, malformed.getFailed());
+        assertEquals(3, malformed.getErrors().get(0).getRow());
+        assertTrue(malformed.getErrors().get(0).getMessage().startsWith("Malformed JSON"));
+        assertNotNull(partial.checkIfArtistExists("second"));
+
+        ImportResult notAnArray = new CatalogueImporter(partial::createArtists).importStream(body("{\"name\":\"x\"}"), "application/json");
+        assertEquals("Expected a JSON array of rows", notAnArray.getErrors().get(0).getMessage());
+    }
+
+    @Test
+    @Order(6)
+    public void readsRevalidateAgainstTheRepositoryVersion() throws Exception {
+        mvc.perform(post("/spotify/add-user").param("name", "etag user").param("mobile", "etag mobile"));
+        mvc.perform(post("/spotify/add-user").param("name", "etag user").param("mobile", "etag mobile 2"));
+        mvc.perform(post("/spotify/add-album").param("title", "etag album").param("artistName", "etag artist"));
+        mvc.perform(post("/spotify/add-song").param("title", "etag first").param("albumName", "etag album").param("length", "3"));
+        mvc.perform(post("/spotify/add-song").param("title", "etag second").param("albumName", "etag album").param("length", "3"));
+        mvc.perform(put("/spotify/like-song").param("mobile", "etag mobile").param("songTitle", "etag first"));
+
+        MvcResult first = mvc.perform(get("/spotify/popular-song"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Cache-Control", "no-cache"))
+                .andExpect(content().string("etag first"))
+                .andReturn();
+        String etag = first.getResponse().getHeader("ETag");
+        assertNotNull(etag);
+
+        // Nothing changed, so the tag still matches and no body is sent.
+        mvc.perform(get("/spotify/popular-song").header("If-None-Match", etag))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+
+        // A write moves the version: the old tag no longer matches and the cached answer is recomputed.
+        mvc.perform(put("/spotify/like-song").param("mobile", "etag mobile").param("songTitle", "etag second"));
+        mvc.perform(put("/spotify/like-song").param("mobile", "etag mobile 2").param("songTitle", "etag second"));
+        MvcResult second = mvc.perform(get("/spotify/popular-song").header("If-None-Match", etag))
+                .andExpect(status().isOk())
+                .andExpect(content().string("etag second"))
+                .andReturn();
+        assertNotEquals(etag, second.getResponse().getHeader("ETag"));
+    }
+
+    @Test
+    @Order(7)
+    public void readCacheRecomputesOnlyWhenTheVersionMoves() {
+        long[] version = {1};
+        int[] computed = {0};
+        ReadCache cache = new ReadCache(() -> version[0]);
+        ReadCache.Query<String, RuntimeException> query = () -> "answer " + ++computed[0];
+
+        assertEquals("answer 1", cache.get("key", query));
+        assertEquals("answer 1", cache.get("key", query));
+        assertEquals("answer 2", cache.get("other key", query));
+
+        version[0]++;
+        assertEquals("answer 3", cache.get("key", query));
+        assertEquals("answer 3", cache.get("key", query));
+        assertEquals(3, computed[0]);
+    }
+
+    // Every page of a listing, following the cursors from the first page to the one without a next cursor.
+    private static <T> List<List<T>> allPages(PageReader<T> reader, int limit) throws Exception {
+        List<List<T>> pages = new ArrayList<>();
+        Integer cursor = null;
+        do {
+            Page<T> page = reader.read(cursor, limit);
+            pages.add(page.getItems());
+            cursor = page.getNextCursor();
+        } while(cursor != null);
+        return pages;
+    }
+
+    private interface PageReader<T> {
+        Page<T> read(Integer cursor, int limit) throws Exception;
+    }
+
+    @Test
+    @Order(8)
+    public void listingsPageWithCursorsToTheLastItem() throws Exception {
+        SpotifyRepository repository = new SpotifyRepository();
+        repository.createUser("user", "mobile");
+        repository.createAlbum("album", "artist");
+        repository.createAlbum("other", "artist");
+        // The two albums' songs are interleaved, so an album's songs aren't a run of ids.
+        for(int s = 0; s < 6; s++) {
+            repository.createSong("song" + s, "album", 3);
+            repository.createSong("other" + s, "other", 3);
+        }
+        for(int a = 0; a < 3; a++)
+            repository.createAlbum("more" + a, "artist");
+        Playlist playlist = repository.createPlaylistOnName("mobile", "playlist", List.of("song0", "song1", "song2", "song3", "song4", "song5"));
+
+        // A list that fills its last page exactly has no empty page after it.
+        List<List<Song>> songPages = allPages((cursor, limit) -> repository.getPlaylistSongs(playlist.getId(), cursor, limit), 3);
+        assertEquals(2, songPages.size());
+        assertEquals("song3", songPages.get(1).get(0).getTitle());
+
+        List<List<Song>> albumPages = allPages((cursor, limit) -> repository.getAlbumSongs("album", cursor, limit), 4);
+        assertEquals(2, albumPages.size());
+        assertEquals(4, albumPages.get(0).size());
+        assertEquals(List.of("song4", "song5"), List.of(albumPages.get(1).get(0).getTitle(), albumPages.get(1).get(1).getTitle()));
+
+        List<List<Album>> albumListPages = allPages((cursor, limit) -> repository.getArtistAlbums("artist", cursor, limit), 2);
+        assertEquals(3, albumListPages.size());
+        assertEquals(1, albumListPages.get(2).size());
+
+        // A cursor past the end is an empty last page; limits are capped, not refused, above MAX_PAGE_SIZE.
+        Page<Song> past = repository.getPlaylistSongs(playlist.getId(), 100, 10);
+        assertTrue(past.getItems().isEmpty());
+        assertNull(past.getNextCursor());
+        assertNull(repository.getPlaylistSongs(playlist.getId(), null, 100_000).getNextCursor());
+
+        // Cursors that were never handed out are refused.
+        Integer otherAlbumSong = repository.getAlbumSongs("other", null, 1).getNextCursor();
+        Exception e = assertThrows(Exception.class, () -> repository.getAlbumSongs("album", otherAlbumSong, 2));
+        assertEquals("Invalid cursor", e.getMessage());
+        e = assertThrows(Exception.class, () -> repository.getAlbumSongs("album", 1_000_000, 2));
+        assertEquals("Invalid cursor", e.getMessage());
+        e = assertThrows(Exception.class, () -> repository.getPlaylistSongs(playlist.getId(), -1, 2));
+        assertEquals("Invalid cursor", e.getMessage());
+        e = assertThrows(Exception.class, () -> repository.getArtistAlbums("artist", null, 0));
+        assertEquals("Invalid limit", e.getMessage());
+    }
+
+    @Test
+    @Order(9)
+    public void listingResponsesCarryTheNextCursorUntilTheLastPage() throws Exception {
+        mvc.perform(post("/spotify/add-album").param("title", "paged album").param("artistName", "paged artist"));
+        for(int s = 0; s < 3; s++)
+            mvc.perform(post("/spotify/add-song").param("title", "paged" + s).param("albumName", "paged album").param("length", "3"));
+
+        // Bodies are streamed, so each response is completed by an async dispatch.
+        MvcResult first = mvc.perform(asyncDispatch(mvc.perform(get("/spotify/album-songs").param("albumTitle", "paged album").param("limit", "2"))
+                        .andExpect(request().asyncStarted()).andReturn()))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(NdjsonResponse.NDJSON))
+                .andExpect(header().exists(NdjsonResponse.NEXT_CURSOR))
+                .andReturn();
+        assertEquals(2, first.getResponse().getContentAsString().split("\n").length);
+
+        String cursor = first.getResponse().getHeader(NdjsonResponse.NEXT_CURSOR);
+        MvcResult last = mvc.perform(asyncDispatch(mvc.perform(get("/spotify/album-songs").param("albumTitle", "paged album").param("limit", "2").param("cursor", cursor))
+                        .andExpect(request().asyncStarted()).andReturn()))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist(NdjsonResponse.NEXT_CURSOR))
+                .andReturn();
+        assertTrue(last.getResponse().getContentAsString().startsWith("{\"title\":\"paged2\""));
+    }
+
+    @Test
+    @Order(10)
+    public void shardedRepositoryRoutesAcrossShards() throws Exception {
+        AbstractSpotifyRepository repository = new ShardedSpotifyRepository(new LocalShardTransport(4));
+        int artistCount = 20;
+        int userCount = 100;
+
+        for(int a = 0; a < artistCount; a++) {
+            repository.createAlbum("album" + a, "artist" + a);
+            repository.createSong("song" + a, "album" + a, 3);
+        }
+        for(int u = 0; u < userCount; u++)
+            repository.createUser("user" + u, "mobile" + u);
+
+        // Song i is liked by the first i users, so song (artistCount - 1) is the most popular.
+        runConcurrently(thread -> {
+            for(int a = 0; a < artistCount; a++)
+                for(int u = 0; u < a; u++)
+                    repository.likeSong("mobile" + u, "song" + a);
+        });
+
+        for(int a = 0; a < artistCount; a++) {
+            assertEquals(a, repository.checkIfSongExists("song" + a).getLikes());
+            assertEquals(a, repository.checkIfArtistExists("artist" + a).getLikes());
+        }
+        assertEquals("song" + (artistCount - 1), repository.mostPopularSong());
+        assertEquals("artist" + (artistCount - 1), repository.mostPopularArtist());
+
+        Playlist playlist = repository.createPlaylistOnLength("mobile0", "playlist", 3);
+        for(int u = 0; u < userCount; u++)
+            repository.findPlaylist("mobile" + u, "playlist");
+
+        assertEquals(artistCount, repository.getPlaylistSongs(playlist.getId(), null, 1000).getItems().size());
+        assertEquals(userCount, repository.getPlaylistListeners(playlist.getId(), null, 1000).getItems().size());
+    }
+
+    @Test
+    @Order(11)
+    public void trendingWindowSlidesWithTheClock() {
+        long[] now = {0};
+        TrendingWindow<String> window = new TrendingWindow<>(60_000, 60, () -> now[0]);
+
+        window.record("old", 5);
+        now[0] = 30 * 60_000;
+        window.record("new", 2);
+        window.record("newer", 2);
+        assertEquals(List.of("old", "new", "newer"), titles(window.top(10)));
+        assertEquals(List.of("old"), titles(window.top(1)));
+
+        // The minute "old" was liked in leaves the window after an hour.
+        now[0] = 60 * 60_000;
+        assertEquals(List.of("new", "newer"), titles(window.top(10)));
+        now[0] = 91 * 60_000;
+        assertEquals(List.of(), titles(window.top(10)));
+    }
+
+    @Test
+    @Order(12)
+    public void searchMatchesPrefixesThenMisspellings() throws Exception {
+        SpotifyRepository repository = new SpotifyRepository();
+        repository.createAlbum("Thriller", "Michael Jackson");
+        repository.createSong("Thriller", "Thriller", 5);
+        repository.createSong("Billie Jean", "Thriller", 4);
+        repository.createSong("Beat It", "Thriller", 4);
+
+        List<SearchIndex.Hit> hits = repository.search("THR", 10);
+        assertEquals(1, hits.size());
+        assertEquals("Thriller", hits.get(0).getTitle());
+        assertEquals(List.of("song", "album"), hits.get(0).getTypes());
+
+        hits = repository.search("bilie j", 10);
+        assertEquals(1, hits.size());
+        assertEquals("Billie Jean", hits.get(0).getTitle());
+        assertEquals(1, hits.get(0).getDistance());
+
+        assertEquals("Michael Jackson", repository.search("micheal", 10).get(0).getTitle());
+        assertTrue(repository.search("zzzz", 10).isEmpty());
+    }
+
+    @Test
+    @Order(13)
+    public void recommendationsFollowListenersWithTheSameTaste() throws Exception {
+        SpotifyRepository repository = new SpotifyRepository();
+        repository.createAlbum("album", "artist");
+        for(String title : List.of("a", "b", "c", "d"))
+            repository.createSong(title, "album", 3);
+        for(int u = 0; u < 5; u++)
+            repository.createUser("user" + u, "mobile" + u);
+
+        // Listeners of "a" also liked "b" more often than "c"; nobody who liked "a" liked "d".
+        for(int u = 1; u < 4; u++) {
+            repository.likeSong("mobile" + u, "a");
+            repository.likeSong("mobile" + u, "b");
+        }
+        repository.likeSong("mobile1", "c");
+        repository.likeSong("mobile4", "d");
+        repository.likeSong("mobile0", "a");
+
+        assertEquals(List.of("b", "c"), repository.recommendSongs("mobile0", 2));
+        assertFalse(repository.recommendSongs("mobile1", 10).contains("a"));
+        assertThrows(Exception.class, () -> repository.recommendSongs("nobody", 10));
+
+        // A playlist counts once, by its first songs, which go together with each other but not with the
+        // creator's likes, and doesn't push those likes out of the creator's history.
+        for(int i = 0; i < 20; i++)
+            repository.createSong("p" + i, "album", 5);
+        repository.createPlaylistOnLength("mobile0", "five minutes", 5);
+        assertEquals(List.of("b", "c"), repository.recommendSongs("mobile0", 2));
+
+        repository.likeSong("mobile2", "p0");
+        List<String> recommended = repository.recommendSongs("mobile2", 20);
+        assertTrue(recommended.contains("p" + (Recommender.PLAYLIST_SONGS - 1)));
+        assertFalse(recommended.contains("p" + Recommender.PLAYLIST_SONGS));
+    }
+
+    @Test
+    @Order(14)
+    public void lengthPlaylistsPickUpLaterSongsAndSurviveSnapshots() throws Exception {
+        SpotifyRepository repository = new SpotifyRepository();
+        repository.createUser("user", "mobile");
+        repository.createAlbum("album", "artist");
+        repository.createSong("before", "album", 3);
+        Playlist playlist = repository.createPlaylistOnLength("mobile", "three minutes", 3);
+        repository.createSong("other", "album", 4);
+        repository.createSong("after", "album", 3);
+
+        List<String> titles = new ArrayList<>();
+        for(Song song : repository.getPlaylistSongs(playlist.getId(), null, 10).getItems())
+            titles.add(song.getTitle());
+        assertEquals(List.of("before", "after"), titles);
+
+        Path file = Files.createTempFile("snapshot", ".bin");
+        try {
+            SpotifySnapshot.write(repository, 1, file);
+            SpotifyRepository restored = new SpotifyRepository();
+            SpotifySnapshot.read(file, restored);
+            restored.createSong("restored", "album", 3);
+
+            Playlist restoredPlaylist = restored.checkIfPlaylistExists("three minutes");
+            assertEquals(3, restored.getPlaylistSongs(restoredPlaylist.getId(), null, 10).getItems().size());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    @Order(15)
+    public void readsDontWaitOnWriters() throws Exception {
+        SpotifyRepository repository = new SpotifyRepository();
+        repository.createUser("user", "mobile");
+        repository.createAlbum("album", "artist");
+        repository.createSong("first", "album", 3);
+        repository.createSong("second", "album", 3);
+        Playlist playlist = repository.createPlaylistOnName("mobile", "playlist", List.of("first"));
+        repository.likeSong("mobile", "second");
+
+        // A writer holding the leaderboard and the listener list doesn't hold up reads of either.
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            executor.submit(() -> {
+                synchronized (repository.songLeaderboard) {
+                    synchronized (repository.playlistListenerMap.get(playlist)) {
+                        held.countDown();
+                        release.await();
+                    }
+                }
+                return null;
+            });
+            held.await();
+            Future<List<String>> top = executor.submit(() -> repository.mostPopularSongs(5));
+            Future<Page<User>> listeners = executor.submit(() -> repository.getPlaylistListeners(playlist.getId(), null, 10));
+            assertEquals(List.of("second"), top.get(5, TimeUnit.SECONDS));
+            assertEquals(1, listeners.get(5, TimeUnit.SECONDS).getItems().size());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    @Order(16)
+    public void exportedSnapshotsLoadIntoAnotherInstance() throws Exception {
+        SpotifyService source = new SpotifyService();
+        source.createAlbum("album", "artist");
+        source.createAlbum("other album", "other artist");
+        source.createSong("a", "album", 3);
+        source.createSong("b", "album", 4);
+        source.createSong("c", "other album", 3);
+        for(int u = 1; u <= 4; u++)
+            source.createUser("user" + u, "mobile" + u);
+        source.createPlaylistOnName("mobile1", "mix", List.of("a", "c"));
+        source.createPlaylistOnLength("mobile2", "three minutes", 3);
+        source.findPlaylist("mobile3", "mix");
+        source.likeSong("mobile1", "c");
+        source.likeSong("mobile2", "c");
+        source.likeSong("mobile2", "b");
+        source.likeSong("mobile3", "b");
+        source.likeSong("mobile3", "c");
+        source.likeSong("mobile4", "a");
+
+        Path file = source.exportSnapshot();
+        SpotifyService target = new SpotifyService();
+        try(InputStream in = Files.newInputStream(file)) {
+            target.importSnapshot(in);
+        }
+
+        assertEquals(source.mostPopularSongs(3), target.mostPopularSongs(3));
+        assertEquals(source.mostPopularArtists(2), target.mostPopularArtists(2));
+        assertEquals(source.recommendSongs("mobile4", 3), target.recommendSongs("mobile4", 3));
+        Playlist mix = target.findPlaylist("mobile4", "mix");
+        assertEquals(3, target.getPlaylistListeners(mix.getId(), null, 10).getItems().size());
+        target.createSong("d", "other album", 3);
+        Playlist threeMinutes = target.findPlaylist("mobile1", "three minutes");
+        assertEquals(3, target.getPlaylistSongs(threeMinutes.getId(), null, 10).getItems().size());
+
+        try(InputStream in = Files.newInputStream(file)) {
+            Exception e = assertThrows(Exception.class, () -> target.importSnapshot(in));
+            assertEquals("Repository is not empty", e.getMessage());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    @Order(17)
+    public void shardedNamePlaylistsHoldSongsOfEveryShard() throws Exception {
+        AbstractSpotifyRepository repository = new ShardedSpotifyRepository(new LocalShardTransport(2));
+        repository.createUser("user", "mobile");
+
+        // Enough artists that both shards hold some, each with a song called "shared" and one of its own.
+        int artistCount = 8;
+        for(int a = 0; a < artistCount; a++) {
+            repository.createAlbum("album" + a, "artist" + a);
+            repository.createSong("shared", "album" + a, 3);
+            repository.createSong("own" + a, "album" + a, 4);
+        }
+
+        Playlist playlist = repository.createPlaylistOnName("mobile", "mix", List.of("shared", "own0", "own1"));
+        List<String> songTitles = new ArrayList<>();
+        for(Song song : repository.getPlaylistSongs(playlist.getId(), null, 100).getItems())
+            songTitles.add(song.getTitle());
+
+        assertEquals(artistCount + 2, songTitles.size());
+        assertEquals(artistCount, Collections.frequency(songTitles, "shared"));
+        assertTrue(songTitles.containsAll(List.of("own0", "own1")));
+
+        // A title routes to its first song, and ties across shards go to what was created first.
+        assertEquals("album0", repository.getAlbumOfTheSong(repository.checkIfSongExists("shared")).getTitle());
+        List<String> ownSongs = new ArrayList<>();
+        List<String> artists = new ArrayList<>();
+        for(int a = 0; a < artistCount; a++) {
+            repository.likeSong("mobile", "own" + a);
+            ownSongs.add("own" + a);
+            artists.add("artist" + a);
+        }
+        assertEquals(ownSongs, repository.mostPopularSongs(artistCount));
+        assertEquals(artists, repository.mostPopularArtists(artistCount));
+        assertEquals(ownSongs, repository.trendingSongs("1h", artistCount));
+        assertEquals(artists, repository.trendingArtists("1h", artistCount));
+
+        // A list of one catalogue's song ids refuses songs of another.
+        SpotifyRepository other = new SpotifyRepository();
+        other.createAlbum("album", "artist");
+        Song foreign = other.createSong("foreign", "album", 3);
+        assertThrows(IllegalArgumentException.class, () -> new SpotifyRepository().catalogue.newSongList().add(foreign));
+    }
+
+    @Test
+    @Order(18)
+    public void reloadedSnapshotsWriteTheSameSnapshot() throws Exception {
+        SpotifyRepository repository = new SpotifyRepository();
+        repository.createAlbum("album", "artist");
+        for(String title : List.of("a", "b", "c", "d"))
+            repository.createSong(title, "album", 3);
+        for(int u = 0; u < 4; u++)
+            repository.createUser("user" + u, "mobile" + u);
+        repository.createPlaylistOnName("mobile0", "mix", List.of("a", "b"));
+        repository.findPlaylist("mobile1", "mix");
+        repository.likeSong("mobile2", "a");
+        repository.likeSong("mobile2", "c");
+        repository.likeSong("mobile3", "d");
+
+        // Each load goes through the playlists' recording as well as the saved lists, which must not add up.
+        Path first = Files.createTempFile("snapshot", ".bin");
+        Path second = Files.createTempFile("snapshot", ".bin");
+        Path third = Files.createTempFile("snapshot", ".bin");
+        try {
+            SpotifySnapshot.write(repository, 1, first);
+            SpotifyRepository reloaded = new SpotifyRepository();
+            SpotifySnapshot.read(first, reloaded);
+            SpotifySnapshot.write(reloaded, 1, second);
+            SpotifyRepository reloadedTwice = new SpotifyRepository();
+            SpotifySnapshot.read(second, reloadedTwice);
+            SpotifySnapshot.write(reloadedTwice, 1, third);
+
+            assertArrayEquals(Files.readAllBytes(first), Files.readAllBytes(second));
+            assertArrayEquals(Files.readAllBytes(first), Files.readAllBytes(third));
+            assertEquals(repository.recommendSongs("mobile0", 3), reloadedTwice.recommendSongs("mobile0", 3));
+        } finally {
+            Files.deleteIfExists(first);
+            Files.deleteIfExists(second);
+            Files.deleteIfExists(third);
+        }
+    }
+
+    // A service journalling to dir, as if started with -Dspotify.data.dir=dir, recovering whatever dir holds.
+    private static SpotifyService journalledService(Path dir) {
+        String dataDir = System.getProperty("spotify.data.dir");
+        String snapshotInterval = System.getProperty("spotify.snapshot.interval.minutes");
+        System.setProperty("spotify.data.dir", dir.toString());
+        System.setProperty("spotify.snapshot.interval.minutes", "0");
+        try {
+            SpotifyService service = new SpotifyService();
+            service.start();
+            return service;
+        } finally {
+            restoreProperty("spotify.data.dir", dataDir);
+            restoreProperty("spotify.snapshot.interval.minutes", snapshotInterval);
+        }
+    }
+
+    // Puts a system property back as it was before a test set it.
+    private static void restoreProperty(String key, String value) {
+        if(value == null)
+            System.clearProperty(key);
+        else
+            System.setProperty(key, value);
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try(Stream<Path> paths = Files.walk(dir)) {
+            for(Path path : (Iterable<Path>) paths.sorted(Collections.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+
+    @Test
+    @Order(19)
+    public void journalReplaysConcurrentWritesWithTheSameIds() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        try {
+            SpotifyService service = journalledService(dir);
+            service.createAlbum("album", "artist");
+            service.createSong("song", "album", 3);
+            for(int thread = 0; thread < THREADS; thread++)
+                service.createUser("listener", "listener" + thread);
+
+            // Users and playlists are created concurrently and joined by id, so replay must hand out the same ids.
+            runConcurrently(thread -> {
+                for(int i = 0; i < 50; i++) {
+                    service.createUser("user", "mobile" + thread + "-" + i);
+                    Playlist playlist = service.createPlaylistOnLength("mobile" + thread + "-" + i, "playlist" + thread + "-" + i, 3);
+                    service.findPlaylistById("listener" + ((thread + 1) % THREADS), playlist.getId());
+                    service.likeSong("mobile" + thread + "-" + i, "song");
+                }
+            });
+
+            SpotifyService recovered = journalledService(dir);
+            for(int thread = 0; thread < THREADS; thread++) {
+                for(int i = 0; i < 50; i++) {
+                    String mobile = "mobile" + thread + "-" + i;
+                    Playlist playlist = service.findPlaylist(mobile, "playlist" + thread + "-" + i);
+                    Playlist recoveredPlaylist = recovered.findPlaylist(mobile, "playlist" + thread + "-" + i);
+                    assertEquals(playlist.getId(), recoveredPlaylist.getId());
+                    assertEquals(mobiles(service.getPlaylistListeners(playlist.getId(), null, 10).getItems()),
+                            mobiles(recovered.getPlaylistListeners(recoveredPlaylist.getId(), null, 10).getItems()));
+                }
+            }
+            assertEquals(THREADS * 50, recovered.likeSong("mobile0-0", "song").getLikes());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    @Order(20)
+    public void journalRecoveryCutsATornTailAndRefusesABadRecord() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        try {
+            SpotifyService service = journalledService(dir);
+            service.createUser("user", "mobile");
+            service.createAlbum("album", "artist");
+            service.createSong("song", "album", 3);
+            service.likeSong("mobile", "song");
+
+            // A crash in the middle of a record leaves its length and part of its payload.
+            Path log = dir.resolve("wal-0.log");
+            long goodLength = Files.size(log);
+            Files.write(log, new byte[]{0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+
+            SpotifyService recovered = journalledService(dir);
+            assertEquals(goodLength, Files.size(log));
+            assertEquals("song", recovered.mostPopularSong());
+
+            // Records appended after the cut replay too.
+            recovered.createUser("other", "other mobile");
+            assertEquals(1, journalledService(dir).createUser("other", "other mobile").getId());
+
+            // A whole record that can't be applied means the log doesn't match the snapshot: a listener
+            // for a playlist nobody created.
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(payload);
+            out.writeByte(8);
+            out.writeBoolean(true);
+            out.writeUTF("mobile");
+            out.writeBoolean(true);
+            out.writeUTF("missing playlist");
+            CRC32 crc = new CRC32();
+            crc.update(payload.toByteArray());
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream recordOut = new DataOutputStream(record);
+            recordOut.writeInt(payload.size());
+            recordOut.write(payload.toByteArray());
+            recordOut.writeInt((int) crc.getValue());
+            Files.write(log, record.toByteArray(), StandardOpenOption.APPEND);
+
+            Exception e = assertThrows(UncheckedIOException.class, () -> journalledService(dir));
+            assertEquals("Playlist does not exist", e.getCause().getCause().getMessage());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    @Order(21)
+    public void likeBatchesDropRepeatsAndFoldCounts() throws Exception {
+        SpotifyRepository repository = new SpotifyRepository();
+        repository.createAlbum("album", "artist");
+        Song a = repository.createSong("a", "album", 3);
+        Song b = repository.createSong("b", "album", 3);
+        User first = repository.createUser("first", "mobile1");
+        User second = repository.createUser("second", "mobile2");
+        repository.likeSong("mobile1", "b");
+
+        // A repeat inside the batch and a like counted before the batch each count once.
+        repository.applyLikes(List.of(new LikePipeline.Like(first, a), new LikePipeline.Like(second, a),
+                new LikePipeline.Like(first, a), new LikePipeline.Like(first, b), new LikePipeline.Like(second, b)));
+
+        assertEquals(2, a.getLikes());
+        assertEquals(2, b.getLikes());
+        assertEquals(2, repository.getLikesOfTheSong(a).size());
+        assertEquals(4, repository.checkIfArtistExists("artist").getLikes());
+        assertEquals(List.of("a", "b"), repository.mostPopularSongs(5));
+    }
+
+    @Test
+    @Order(22)
+    public void likePipelineBackpressureAndFailedBatches() throws Exception {
+        User user = new User("user", "mobile");
+        Song song = new Song("song", 3);
+        LikePipeline.Like like = new LikePipeline.Like(user, song);
+
+        for(LikePipeline.Backpressure backpressure : LikePipeline.Backpressure.values()) {
+            // The consumer holds the first like until released, and the queue holds one more, so the third waits.
+            CountDownLatch applying = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            List<String> appliedOn = Collections.synchronizedList(new ArrayList<>());
+            LikePipeline pipeline = new LikePipeline(1, 1, 0, backpressure, batch -> {
+                appliedOn.add(Thread.currentThread().getName());
+                applying.countDown();
+                try {
+                    if(Thread.currentThread().getName().equals("spotify-like-pipeline"))
+                        release.await();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            ExecutorService caller = Executors.newSingleThreadExecutor();
+            try {
+                pipeline.submit(like);
+                applying.await();
+                pipeline.submit(like);
+
+                Future<?> third = caller.submit(() -> {
+                    pipeline.submit(like);
+                    return null;
+                });
+                switch(backpressure) {
+                    case BLOCK:
+                        assertThrows(TimeoutException.class, () -> third.get(200, TimeUnit.MILLISECONDS));
+                        release.countDown();
+                        third.get(5, TimeUnit.SECONDS);
+                        break;
+                    case REJECT:
+                        Exception e = assertThrows(ExecutionException.class, () -> third.get(5, TimeUnit.SECONDS));
+                        assertEquals("Too many likes, try again later", e.getCause().getMessage());
+                        break;
+                    case CALLER_RUNS:
+                        third.get(5, TimeUnit.SECONDS);
+                        assertTrue(appliedOn.stream().anyMatch(thread -> !thread.equals("spotify-like-pipeline")));
+                        break;
+                }
+            } finally {
+                release.countDown();
+                pipeline.close();
+                caller.shutdownNow();
+            }
+            assertEquals(backpressure == LikePipeline.Backpressure.REJECT ? 2 : 3, appliedOn.size());
+        }
+
+        // A batch that fails is applied a like at a time, so only the like that fails alone is lost.
+        Song bad = new Song("bad", 3);
+        List<String> applied = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(3);
+        LikePipeline pipeline = new LikePipeline(16, 16, 200, LikePipeline.Backpressure.BLOCK, batch -> {
+            for(LikePipeline.Like queued : batch) {
+                if(queued.getSong() == bad) {
+                    done.countDown();
+                    throw new IllegalStateException("can't apply");
+                }
+            }
+            for(LikePipeline.Like queued : batch) {
+                applied.add(queued.getSong().getTitle());
+                done.countDown();
+            }
+        });
+        try {
+            pipeline.submit(like);
+            pipeline.submit(new LikePipeline.Like(user, bad));
+            pipeline.submit(new LikePipeline.Like(user, new Song("other", 3)));
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            pipeline.close();
+        }
+        assertEquals(List.of("song", "other"), applied);
+    }
+
+    @Test
+    @Order(23)
+    public void trendingRanksAtMostOncePerRefreshInterval() throws Exception {
+        long[] now = {0};
+        TrendingWindow<String> window = new TrendingWindow<>(60_000, 60, 1000, () -> now[0]);
+
+        // Concurrent likes of the same items all count, with no lock on the window.
+        runConcurrently(thread -> {
+            for(int i = 0; i < 1000; i++)
+                window.record(i % 2 == 0 ? "even" : "odd", 1);
+        });
+        window.record("odd", 1);
+        assertEquals(List.of("odd", "even"), titles(window.top(10)));
+        assertEquals(THREADS * 500 + 1, window.top(1).get(0).getLikes());
+
+        // Likes after a ranking show up once the interval has passed.
+        window.record("even", 2);
+        now[0] = 999;
+        assertEquals(List.of("odd", "even"), titles(window.top(10)));
+        now[0] = 1000;
+        assertEquals(List.of("even", "odd"), titles(window.top(10)));
+    }
+
+    @Test
+    @Order(24)
+    public void creatorsRejoiningTheirOlderPlaylistsStayCreators() throws Exception {
+        SpotifyRepository repository = new SpotifyRepository();
+        User creator = repository.createUser("creator", "creator mobile");
+        Playlist older = repository.createPlaylistOnLength("creator mobile", "older", 3);
+        repository.createPlaylistOnLength("creator mobile", "newer", 3);
+
+        repository.findPlaylist("creator mobile", "older");
+        repository.findPlaylistById("creator mobile", older.getId());
+
+        assertEquals(1, repository.getPlaylistListeners(older.getId(), null, 10).getItems().size());
+        assertEquals(2, repository.userPlaylistMap.get(creator).size());
+        assertTrue(repository.checkIfUserIsACreator(creator, older));
+
+        // Ids nobody was given find nobody rather than throw.
+        assertSame(creator, repository.getUserById(creator.getId()));
+        assertNull(repository.getUserById(-1));
+        assertNull(repository.getUserById(1));
+        assertNull(new ShardedSpotifyRepository(new LocalShardTransport(2)).getUserById(7));
+    }
+
+    @Test
+    @Order(25)
+    public void catalogueColumnsGrowOnAndOffTheHeapAndKeepExactDates() {
+        for(boolean offHeap : new boolean[]{false, true}) {
+            // Chunks double from 1024 slots up to 65536; each slot keeps its value as the column grows past it.
+            IntColumn column = new IntColumn(offHeap, -1);
+            assertEquals(0, column.bytes());
+            column.ensureCapacity(0);
+            assertEquals(1024 * Integer.BYTES, column.bytes());
+
+            int[] slots = {0, 1023, 1024, 2047, 2048, 32767, 32768, 65535, 65536, 131071, 200000};
+            for(int slot : slots) {
+                column.ensureCapacity(slot);
+                column.set(slot, slot * 3);
+            }
+            for(int slot : slots)
+                assertEquals(slot * 3, column.get(slot));
+            assertEquals(-1, column.get(1));
+            assertEquals(-1, column.get(65537));
+            assertEquals(200000 * 3 + 5, column.add(200000, 5));
+            assertEquals(4 * 65536 * Integer.BYTES, column.bytes());
+
+            // Release dates keep their milliseconds, however far from 1970.
+            ColumnarCatalogue catalogue = new ColumnarCatalogue(offHeap);
+            Date[] dates = {new Date(1234567), new Date(Long.MAX_VALUE), new Date(-62_198_755_200_001L), null};
+            for(int i = 0; i < dates.length; i++)
+                catalogue.addAlbum("album " + i, 0, dates[i]);
+            for(int i = 0; i < dates.length; i++)
+                assertEquals(dates[i], catalogue.albumReleaseDate(i));
+
+            for(int i = 0; i < 3000; i++)
+                catalogue.addSong("song " + (i % 10), i % dates.length, 1 + i % 7);
+            assertEquals(3000, catalogue.songCount());
+            assertEquals("song 9", catalogue.songTitle(2999));
+            assertEquals(1 + 2999 % 7, catalogue.songLength(2999));
+            assertEquals(300, catalogue.forEachSongWithTitle("song 9", song -> {}));
+            catalogue.likers(2999).add(42);
+            assertTrue(catalogue.likersIfPresent(2999).contains(42));
+            assertNull(catalogue.likersIfPresent(2998));
+        }
+    }
+
+    @Test
+    @Order(26)
+    public void trendingKeepsRunningTotalsAndFewCandidates() {
+        long[] now = {0};
+        TrendingWindow<String> window = new TrendingWindow<>(60_000, 60, 0, () -> now[0]);
+
+        for(int i = 0; i < 100; i++)
+            window.record("old" + i, 10);
+        assertEquals(List.of("old0", "old1", "old2"), titles(window.top(3)));
+
+        // Below every kept candidate, so not ranked while the old likes last.
+        now[0] = 30 * 60_000;
+        window.record("fresh", 4);
+        window.record("fresh", 1);
+        window.record("old5", 1);
+        assertEquals(List.of("old5", "old0"), titles(window.top(2)));
+        assertEquals(11, window.top(1).get(0).getLikes());
+
+        // The old minute leaves the window and takes its likes out of the totals.
+        now[0] = 60 * 60_000;
+        List<TrendingWindow.Trend<String>> top = window.top(3);
+        assertEquals(List.of("fresh", "old5"), titles(top));
+        assertEquals(5, top.get(0).getLikes());
+        assertEquals(1, top.get(1).getLikes());
+
+        // Likes after an item's total emptied start a new one.
+        now[0] = 91 * 60_000;
+        assertEquals(List.of(), titles(window.top(3)));
+        window.record("old0", 2);
+        assertEquals(List.of("old0"), titles(window.top(3)));
+        assertEquals(2, window.top(1).get(0).getLikes());
+    }
+
+    private static List<String> mobiles(List<User> users) {
+        List<String> mobiles = new ArrayList<>();
+        for(User user : users)
+            mobiles.add(user.getMobile());
+        return mobiles;
+    }
+
+    private static List<String> titles(List<TrendingWindow.Trend<String>> trends) {
+        List<String> titles = new ArrayList<>();
+        for(TrendingWindow.Trend<String> trend : trends)
+            titles.add(trend.getItem());
+        return titles;
+    }
+
+    @Test
+    @Order(27)
+    public void keyIndexesAndBaselineViewsAgreeWithTheLists() throws Exception {
+        SpotifyRepository repository = new SpotifyRepository();
+        User alice = repository.createUser("alice", "mobile a");
+        User bob = repository.createUser("bob", "mobile b");
+        assertSame(alice, repository.createUser("someone else", "mobile a"));
+        assertSame(bob, repository.checkIfUserExists("mobile b"));
+        assertNull(repository.checkIfUserExists("mobile c"));
+
+        Album first = repository.createAlbum("album", "artist");
+        Album second = repository.createAlbum("second", "artist");
+        assertSame(repository.checkIfArtistExists("artist"), repository.createArtist("artist"));
+        assertEquals(1, repository.artistNameMap.size());
+        assertEquals(first, repository.checkIfAlbumExists("album"));
+
+        Song one = repository.createSong("one", "album", 3);
+        Song two = repository.createSong("two", "album", 4);
+        Song three = repository.createSong("three", "second", 3);
+        repository.likeSong("mobile a", "one");
+        repository.likeSong("mobile b", "one");
+        repository.likeSong("mobile b", "three");
+
+        Playlist older = repository.createPlaylistOnLength("mobile a", "older", 3);
+        Playlist newer = repository.createPlaylistOnName("mobile a", "newer", List.of("two"));
+        assertSame(older, repository.checkIfPlaylistExists("older"));
+        assertSame(newer, repository.getPlaylistById(newer.getId()));
+
+        // The baseline's maps, rebuilt from the indexes that replaced them.
+        assertEquals(List.of(one, two), repository.getAlbumSongMap().get(first));
+        assertEquals(List.of(three), repository.getAlbumSongMap().get(second));
+        assertEquals(List.of(alice, bob), repository.getSongLikeMap().get(one));
+        assertEquals(List.of(bob), repository.getSongLikeMap().get(three));
+        assertFalse(repository.getSongLikeMap().containsKey(two));
+        assertEquals(Map.of(alice, newer), repository.getCreatorPlaylistMap());
+    }
+
+    @Test
+    @Order(28)
+    public void likesReachTheSongsOwnAlbumAndArtist() throws Exception {
+        SpotifyRepository repository = new SpotifyRepository();
+        repository.createUser("user", "mobile");
+        Album red = repository.createAlbum("red", "first artist");
+        Album blue = repository.createAlbum("blue", "second artist");
+        Song redSong = repository.createSong("song", "red", 3);
+        Song blueSong = repository.createSong("blue song", "blue", 3);
+
+        assertEquals(red, repository.getAlbumOfTheSong(redSong));
+        assertEquals(blue, repository.getAlbumOfTheSong(blueSong));
+        assertSame(repository.checkIfArtistExists("first artist"), repository.getArtistOfTheAlbum(red));
+        assertSame(repository.checkIfArtistExists("second artist"), repository.getArtistOfTheAlbum(blue));
+
+        // A like counts for the artist of the song's album and no other.
+        repository.likeSong("mobile", "blue song");
+        assertEquals(0, repository.checkIfArtistExists("first artist").getLikes());
+        assertEquals(1, repository.checkIfArtistExists("second artist").getLikes());
+        assertEquals("second artist", repository.mostPopularArtist());
+    }
+
+    @Test
+    @Order(29)
+    public void lengthRangePlaylistsTakeBothEndsOfTheRange() throws Exception {
+        mvc.perform(post("/spotify/add-user").param("name", "range user").param("mobile", "range mobile"));
+        mvc.perform(post("/spotify/add-album").param("title", "range album").param("artistName", "range artist"));
+        mvc.perform(post("/spotify/add-playlist-on-length-range").param("mobile", "range mobile").param("title", "range playlist")
+                        .param("minLength", "2").param("maxLength", "4"))
+                .andExpect(status().isOk())
+                .andExpect(content().string("Playlist on length range added Success"));
+        assertThrows(Exception.class, () -> mvc.perform(post("/spotify/add-playlist-on-length-range")
+                .param("mobile", "range mobile").param("title", "backwards").param("minLength", "4").param("maxLength", "2")));
+        assertThrows(Exception.class, () -> mvc.perform(post("/spotify/add-playlist-on-length-range")
+                .param("mobile", "nobody").param("title", "no user").param("minLength", "2").param("maxLength", "4")));
+
+        SpotifyRepository repository = new SpotifyRepository();
+        repository.createUser("user", "mobile");
+        repository.createAlbum("album", "artist");
+        for(int length = 1; length <= 5; length++)
+            repository.createSong("length " + length, "album", length);
+        repository.createSong("another 3", "album", 3);
+
+        // Shortest first, and in creation order within a length.
+        Playlist playlist = repository.createPlaylistOnLengthRange("mobile", "two to four", 2, 4);
+        List<String> titles = new ArrayList<>();
+        for(Song song : repository.getPlaylistSongs(playlist.getId(), null, 10).getItems())
+            titles.add(song.getTitle());
+        assertEquals(List.of("length 2", "length 3", "another 3", "length 4"), titles);
+
+        Playlist single = repository.createPlaylistOnLengthRange("mobile", "exactly five", 5, 5);
+        assertEquals(1, repository.getPlaylistSongs(single.getId(), null, 10).getItems().size());
+        Exception e = assertThrows(Exception.class, () -> repository.createPlaylistOnLengthRange("mobile", "backwards", 4, 2));
+        assertEquals("Invalid length range", e.getMessage());
+    }
+
+    @Test
+    @Order(30)
+    public void namePlaylistsTakeEverySongWithATitleOnce() throws Exception {
+        SpotifyRepository repository = new SpotifyRepository();
+        repository.createUser("user", "mobile");
+        repository.createAlbum("first album", "artist");
+        repository.createAlbum("second album", "other artist");
+        Song firstEcho = repository.createSong("echo", "first album", 3);
+        Song solo = repository.createSong("solo", "first album", 4);
+        Song secondEcho = repository.createSong("echo", "second album", 5);
+
+        // Every song with a repeated title, in creation order; asking for a title twice adds its songs once.
+        Playlist playlist = repository.createPlaylistOnName("mobile", "names", List.of("echo", "missing", "solo", "echo"));
+        assertEquals(List.of(firstEcho, secondEcho, solo), repository.getPlaylistSongs(playlist.getId(), null, 10).getItems());
+
+        // checkIfSongExists still answers with the first song of a title.
+        assertEquals(firstEcho, repository.checkIfSongExists("echo"));
+        repository.likeSong("mobile", "echo");
+        assertEquals(1, firstEcho.getLikes());
+        assertEquals(0, secondEcho.getLikes());
+
+        Playlist empty = repository.createPlaylistOnName("mobile", "nothing", List.of("missing"));
+        assertEquals(List.of(), repository.getPlaylistSongs(empty.getId(), null, 10).getItems());
+    }
+
+    @Test
+    @Order(31)
+    public void likeSetsKeepTheirIdsThroughEveryRepresentation() {
+        // Dense ids go from the sorted array to a bitmap at the 17th like, sparse ones to a hash table,
+        // and sparse ones followed by many dense ones from the hash table to a bitmap once that is smaller.
+        int[] dense = new int[3000];
+        int[] sparse = new int[2000];
+        int[] mixed = new int[5000];
+        for(int i = 0; i < dense.length; i++)
+            dense[i] = (i * 7919) % dense.length;
+        for(int i = 0; i < sparse.length; i++)
+            sparse[i] = (sparse.length - i) * 1_000_003;
+        for(int i = 0; i < mixed.length; i++)
+            mixed[i] = i < 20 ? 100_000 + i * 5_000 : i - 20;
+
+        for(int[] ids : new int[][]{dense, sparse, mixed}) {
+            LikeSet set = new LikeSet();
+            TreeSet<Integer> expected = new TreeSet<>();
+            for(int id : ids) {
+                assertEquals(expected.add(id), set.add(id));
+                assertFalse(set.add(id));
+                int size = expected.size();
+                if(size <= 18 || Integer.bitCount(size) == 1 || size == ids.length)
+                    assertLikeSet(expected, set);
+            }
+
+            // Loading a snapshot goes straight to the representation the ids end up in.
+            int[] sorted = expected.stream().mapToInt(Integer::intValue).toArray();
+            for(int count : new int[]{16, 17, sorted.length}) {
+                LikeSet loaded = new LikeSet();
+                loaded.addAll(sorted, count);
+                assertLikeSet(expected.headSet(sorted[count - 1], true), loaded);
+            }
+        }
+    }
+
+    private static void assertLikeSet(SortedSet<Integer> expected, LikeSet set) {
+        assertEquals(expected.size(), set.size());
+        int[] ids = set.toArray();
+        Arrays.sort(ids);
+        assertArrayEquals(expected.stream().mapToInt(Integer::intValue).toArray(), ids);
+        for(int id : expected) {
+            assertTrue(set.contains(id));
+            assertEquals(expected.contains(id + 1), set.contains(id + 1));
+        }
+        assertFalse(set.contains(expected.last() + 1));
+    }
+
+    @Test
+    @Order(32)
+    public void metersCountCreatesLikesAndRejections() throws Exception {
+        double users = counted("spotify.creates", "entity", "user");
+        double songs = counted("spotify.creates", "entity", "song");
+        double likes = counted("spotify.likes");
+        double duplicates = counted("spotify.likes.duplicate");
+        double missing = counted("spotify.exceptions", "reason", "Song does not exist");
+
+        mvc.perform(post("/spotify/add-user").param("name", "metered user").param("mobile", "metered mobile"));
+        mvc.perform(post("/spotify/add-album").param("title", "metered album").param("artistName", "metered artist"));
+        mvc.perform(post("/spotify/add-song").param("title", "metered song").param("albumName", "metered album").param("length", "3"));
+        mvc.perform(put("/spotify/like-song").param("mobile", "metered mobile").param("songTitle", "metered song"));
+        mvc.perform(put("/spotify/like-song").param("mobile", "metered mobile").param("songTitle", "metered song"));
+        assertThrows(Exception.class, () -> mvc.perform(put("/spotify/like-song").param("mobile", "metered mobile").param("songTitle", "no such song")));
+
+        assertEquals(users + 1, counted("spotify.creates", "entity", "user"));
+        assertEquals(songs + 1, counted("spotify.creates", "entity", "song"));
+        assertEquals(likes + 1, counted("spotify.likes"));
+        assertEquals(duplicates + 1, counted("spotify.likes.duplicate"));
+        assertEquals(missing + 1, counted("spotify.exceptions", "reason", "Song does not exist"));
+
+        // The gauges follow the repository behind the endpoints, and everything is published under /actuator/metrics.
+        assertTrue(Metrics.globalRegistry.find("spotify.songs").gauge().value() >= 1);
+        mvc.perform(get("/actuator/metrics/spotify.likes"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name").value("spotify.likes"));
+        mvc.perform(get("/actuator/metrics/http.server.requests").param("tag", "uri:/spotify/like-song"))
+                .andExpect(status().isOk());
+    }
+
+    private static double counted(String name, String... tags) {
+        Counter counter = Metrics.globalRegistry.find(name).tags(tags).counter();
+        return counter == null ? 0 : counter.count();
+    }
+
+    @Test
+    @Order(33)
+    @SuppressWarnings("unchecked")
+    public void virtualThreadsAreOptInAndFallBackBeforeJava21() throws Exception {
+        // Off unless spotify.threads.virtual=true, so this context keeps Tomcat's own pool.
+        assertEquals(0, context.getBeanNamesForType(VirtualThreadConfig.class).length);
+
+        ProtocolHandler handler = mock(ProtocolHandler.class);
+        TomcatProtocolHandlerCustomizer<ProtocolHandler> customizer =
+                (TomcatProtocolHandlerCustomizer<ProtocolHandler>) new VirtualThreadConfig().virtualThreadExecutor();
+        customizer.customize(handler);
+
+        if(Runtime.version().feature() < 21) {
+            verify(handler, never()).setExecutor(any());
+            return;
+        }
+
+        ArgumentCaptor<Executor> executor = ArgumentCaptor.forClass(Executor.class);
+        verify(handler).setExecutor(executor.capture());
+        CompletableFuture<Boolean> virtual = new CompletableFuture<>();
+        executor.getValue().execute(() -> {
+            try {
+                virtual.complete((Boolean) Thread.class.getMethod("isVirtual").invoke(Thread.currentThread()));
+            } catch(ReflectiveOperationException e) {
+                virtual.completeExceptionally(e);
+            }
+        });
+        assertTrue(virtual.get(10, TimeUnit.SECONDS));
+        ((ExecutorService) executor.getValue()).shutdown();
+    }
 }